@@ -0,0 +1,170 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ramona Seay
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+
+package wireblocks;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+ * Compares DynamicConnectivity with a full PathFinder search after every
+ * change, on a random board where blocks are dropped, cleared and rewired.
+ * Clears favour the cells joining the walls in the middle column, so the
+ * path keeps breaking and being rebuilt. The board is left to settle after
+ * every change, as in a game. Both must list the same cells as joining the
+ * west and east walls. ConnectivityIndex, which rebuilds whenever a link
+ * breaks, is timed alongside and must agree on whether they are joined.
+ * Usage: BenchmarkDynamicConnectivity [size] [steps]
+ */
+public class BenchmarkDynamicConnectivity
+{
+	public static void main(String[] args)
+	{
+		int size = args.length > 0? Integer.parseInt(args[0]) : 256;
+		int steps = args.length > 1? Integer.parseInt(args[1]) : 2000;
+		Random random = new Random(1);
+
+		Grid grid = new Grid(size, size);
+		for (int y = 0; y < size; ++y)
+			for (int x = 0; x < size; ++x)
+				if (random.nextInt(10) < 7)
+					grid.setBlock(x, y, new Block(randomType(random)));
+
+		int[] west = new int[size];
+		int[] east = new int[size];
+		for (int y = 0; y < size; ++y)
+		{
+			west[y] = grid.getIndex(0, y);
+			east[y] = grid.getIndex(size - 1, y);
+		}
+
+		GridPhysics physics = new GridPhysics(Direction.SOUTH);
+		while (physics.update(grid))
+			;
+
+		PathFinder pathFinder = new PathFinder();
+		DynamicConnectivity connectivity = new DynamicConnectivity(grid, west,
+		        Direction.WEST, east, Direction.EAST);
+		ConnectivityIndex index = new ConnectivityIndex(grid, west,
+		        Direction.WEST, east, Direction.EAST);
+		int[] fastCells = new int[size * size];
+		int[] slowCells = new int[size * size];
+		int numFast = connectivity.getSpanningCells(fastCells);
+
+		long dynamicTime = 0;
+		long unionTime = 0;
+		long searchTime = 0;
+		int connects = 0;
+		int disconnects = 0;
+		for (int step = 0; step < steps; ++step)
+		{
+			/*
+			 * Drop a block in, clear one or rewire one, then let the board
+			 * settle. While the walls are joined, clears cut the path where
+			 * it crosses the middle column.
+			 */
+			int x = random.nextInt(size);
+			int y = random.nextInt(size);
+			int edit = random.nextInt(10);
+			if (edit < 4)
+				grid.setBlock(x, 0, new Block(randomType(random)));
+			else if (edit < 7 && numFast > 0)
+				grid.clearCell(pickCut(grid, fastCells, numFast, random));
+			else if (edit < 7)
+				grid.setBlock(x, y, null);
+			else if (grid.isOccupied(x, y))
+				grid.getBlock(x, y).setWireType(randomType(random));
+			while (physics.update(grid))
+				;
+
+			boolean wasConnected = numFast > 0;
+			long start = System.nanoTime();
+			numFast = connectivity.getSpanningCells(fastCells);
+			long middle = System.nanoTime();
+			int numSlow = pathFinder.findConnectedCells(grid, west,
+			        Direction.WEST, east, Direction.EAST, slowCells);
+			long end = System.nanoTime();
+			boolean joined = index.isConnected();
+			long last = System.nanoTime();
+
+			dynamicTime += middle - start;
+			searchTime += end - middle;
+			unionTime += last - end;
+			if (!sameCells(fastCells, numFast, slowCells, numSlow)
+			    || joined != numSlow > 0)
+			{
+				System.out.println("Mismatch at step " + step);
+				return;
+			}
+			if (!wasConnected && numFast > 0) connects++;
+			if (wasConnected && numFast == 0) disconnects++;
+		}
+
+		System.out.println("Board " + size + " x " + size + ", " + steps
+		                   + " steps, " + connects + " connects, "
+		                   + disconnects + " disconnects");
+		System.out.printf("dynamic: %8.3f ms/step%n",
+		                  dynamicTime / 1e6 / steps);
+		System.out.printf("search:  %8.3f ms/step%n",
+		                  searchTime / 1e6 / steps);
+		System.out.printf("union:   %8.3f ms/step, %d rebuilds%n",
+		                  unionTime / 1e6 / steps, index.getRebuildCount());
+	}
+
+	/* Enough four-way blocks to keep the board close to percolating */
+	private static WireType randomType(Random random)
+	{
+		if (random.nextInt(3) == 0) return WireType.of(0xF);
+
+		/* Otherwise two or three wires, like WireType.random() but seeded */
+		int mask;
+		do
+			mask = random.nextInt(16);
+		while (Integer.bitCount(mask) < 2 || Integer.bitCount(mask) > 3);
+		return WireType.of(mask);
+	}
+
+	/* A random cell of the list in the middle column of the grid */
+	private static int pickCut(Grid grid, int[] cells, int numCells,
+	                           Random random)
+	{
+		int middle = grid.getWidth() / 2;
+		int numCut = 0;
+		int cut = -1;
+		for (int i = 0; i < numCells; ++i)
+			if (grid.getX(cells[i]) == middle
+			    && random.nextInt(++numCut) == 0)
+				cut = cells[i];
+		return cut;
+	}
+
+	/* Sorts both lists of cells and compares them */
+	private static boolean sameCells(int[] a, int numA, int[] b, int numB)
+	{
+		if (numA != numB) return false;
+		Arrays.sort(a, 0, numA);
+		Arrays.sort(b, 0, numB);
+		for (int i = 0; i < numA; ++i)
+			if (a[i] != b[i]) return false;
+		return true;
+	}
+}
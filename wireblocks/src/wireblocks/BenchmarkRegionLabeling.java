@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ramona Seay
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+
+package wireblocks;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+ * Times RegionLabeler on a large random board with pools of 1, 2, 4, ... up
+ * to every available core, and checks that each pool size produces the same
+ * labels as the depth-first search GraphBuilder used before it, timed too.
+ * Usage: BenchmarkRegionLabeling [size] [repetitions]
+ */
+public class BenchmarkRegionLabeling
+{
+	public static void main(String[] args)
+	{
+		int size = args.length > 0? Integer.parseInt(args[0]) : 2048;
+		int repetitions = args.length > 1? Integer.parseInt(args[1]) : 5;
+
+		Grid grid = new Grid(size, size);
+		grid.randomize();
+		System.out.println("Board " + size + " x " + size);
+
+		/* The reference labels, and the time to beat */
+		int[] expected = new int[grid.getIndexLimit()];
+		int expectedRegions = labelBySearch(grid, expected);
+		long searchBest = Long.MAX_VALUE;
+		for (int i = 0; i < repetitions; ++i)
+		{
+			long start = System.nanoTime();
+			labelBySearch(grid, expected);
+			searchBest = Math.min(searchBest, System.nanoTime() - start);
+		}
+		System.out.printf("    search: %8.2f ms, %d regions%n",
+		                  searchBest / 1e6, expectedRegions);
+
+		int cores = Runtime.getRuntime().availableProcessors();
+		double baseline = 0;
+		for (int threads = 1; ; threads *= 2)
+		{
+			threads = Math.min(threads, cores);
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			RegionLabeler labeler = new RegionLabeler(pool,
+			        RegionLabeler.DEFAULT_TILE_SIZE);
+			int[] labels = new int[grid.getIndexLimit()];
+
+			/* Warm up once, then take the best of the timed runs */
+			int numRegions = labeler.label(grid, labels);
+			long best = Long.MAX_VALUE;
+			for (int i = 0; i < repetitions; ++i)
+			{
+				long start = System.nanoTime();
+				labeler.label(grid, labels);
+				best = Math.min(best, System.nanoTime() - start);
+			}
+			pool.shutdown();
+
+			if (numRegions != expectedRegions
+			    || !sameLabels(grid, expected, labels))
+			{
+				System.out.println("Mismatch with " + threads + " threads");
+				return;
+			}
+
+			double millis = best / 1e6;
+			if (threads == 1) baseline = millis;
+
+			System.out.printf("%2d threads: %8.2f ms, speedup %.2f, "
+			                  + "%d regions%n", threads, millis,
+			                  baseline / millis, numRegions);
+			if (threads == cores) break;
+		}
+	}
+
+	/* Compares the labels of every cell, skipping indices between rows */
+	private static boolean sameLabels(Grid grid, int[] a, int[] b)
+	{
+		for (int y = 0; y < grid.getHeight(); ++y)
+			for (int x = 0; x < grid.getWidth(); ++x)
+			{
+				int cell = grid.getIndex(x, y);
+				if (a[cell] != b[cell]) return false;
+			}
+		return true;
+	}
+
+	/*
+	 * The labeling GraphBuilder used to do: a depth-first search from each
+	 * unlabeled block, numbering regions in order of their first cell with
+	 * columns outermost. Keeps its own stack rather than recursing, so large
+	 * boards do not overflow the thread's. Empty cells are labeled -1.
+	 */
+	private static int labelBySearch(Grid grid, int[] labels)
+	{
+		Arrays.fill(labels, -1);
+		int[] stack = new int[grid.getWidth() * grid.getHeight()];
+		int numRegions = 0;
+		for (int x = 0; x < grid.getWidth(); ++x)
+			for (int y = 0; y < grid.getHeight(); ++y)
+			{
+				int start = grid.getIndex(x, y);
+				if (!grid.isOccupied(start) || labels[start] >= 0) continue;
+
+				int region = numRegions++;
+				int size = 0;
+				labels[start] = region;
+				stack[size++] = start;
+				while (size > 0)
+				{
+					int cell = stack[--size];
+					for (Direction direction : Direction.toArray())
+					{
+						if (!grid.hasWire(cell, direction)) continue;
+						int next = grid.getNeighbor(cell, direction);
+						if (next < 0 || labels[next] >= 0) continue;
+						if (!grid.isOccupied(next)) continue;
+						if (!grid.hasWire(next, direction.reverse())) continue;
+
+						labels[next] = region;
+						stack[size++] = next;
+					}
+				}
+			}
+		return numRegions;
+	}
+}
@@ -28,92 +28,98 @@ public class Block
 {
 	public static final Color NO_COLOR = Color.WHITE;
 
-	private int               m_numWires;
-	private boolean[]         m_wires;
+	private WireType          m_type;
 	private boolean           m_floating;
 	private Color             m_color;
 	
+	/* Builds a block with a random layout; see WireType.random() */
 	public Block()
 	{
-		m_numWires = 4;
-		m_wires = new boolean[m_numWires];
-		for (int i = 0; i < m_wires.length; ++i)
-			m_wires[i] = false;
-		
-		/* Now randomize our active wires */
-
-		/*
-		 * First pick out how many wires to include. We want there to be fewer
-		 * numbers of high count wires to not make things *too* easy.
-		 */
-		// int[] activeDistribution = { 2, 2, 2, 2, 3, 3, 4 };
-		
-		int[] activeDistribution = { 2, 2, 3, 3 };
-		int activeWires = RandomUtils.randomFromDist(activeDistribution);
-		
-		/* Create a shuffled list from 0 to m_numWires - 1 */
-		int[] shuffledWires = RandomUtils.createShuffledArray(m_numWires);
-		
-		/* Now set the first k wires to active (k = activeWires) */
-		for (int i = 0; i < activeWires; ++i)
-		{
-			int curIndex = shuffledWires[i];
-			m_wires[curIndex] = true;
-		}
-		
+		this(WireType.random());
+	}
+
+	/*
+	 * Builds a detached block with exactly the given wires. Bit i of the mask
+	 * corresponds to the i-th entry of Direction.toArray().
+	 */
+	public Block(int wireMask)
+	{
+		this(WireType.of(wireMask));
+	}
+
+	public Block(WireType type)
+	{
+		m_type = type;
+
 		/* Not floating by default */
 		m_floating = false;
 
 		/* Initial color */
 		m_color = Block.NO_COLOR;
 	}
-	
+
 	public void rotate(Rotation rotation)
 	{
-		int vel = rotation.getVelOffset();
-		boolean[] wires = new boolean[m_numWires];
-		for (int i = 0; i < m_numWires; ++i)
-		{
-			int index = (i + vel + m_numWires) % m_numWires;
-			wires[i] = m_wires[index];
-		}
-		m_wires = wires;
+		setWireType(getWireType().rotate(rotation));
 	}
 
 	public int getNumWires()
 	{
-		return m_numWires;
+		return Direction.numDirections();
+	}
+
+	/*
+	 * All wire, floating and color accessors go through getWireType,
+	 * setWireType, isFloating, setFloating, getColor and setColor so that
+	 * views onto packed grid cells only need to override those.
+	 */
+	public WireType getWireType()
+	{
+		return m_type;
+	}
+
+	public void setWireType(WireType type)
+	{
+		m_type = type;
+	}
+
+	public int getWireMask()
+	{
+		return getWireType().getMask();
+	}
+
+	public void setWireMask(int wireMask)
+	{
+		setWireType(WireType.of(wireMask));
 	}
 	
 	public boolean getWire(int index)
 	{
-		return m_wires[index];
+		return (getWireMask() & (1 << index)) != 0;
 	}
 
+	/*
+	 * Returns a shared array describing the wires of this block. The array
+	 * must not be modified.
+	 */
 	public boolean[] getWires()
 	{
-		boolean[] ret = new boolean[m_wires.length];
-		for (int i = 0; i < m_wires.length; ++i)
-			ret[i] = m_wires[i];
-		return ret;
+		return getWireType().getWires();
 	}
 
 	public boolean hasWire(Direction direction)
 	{
-		int index = Direction.getIndex(direction);
-		return m_wires[index];
+		return getWireType().hasWire(direction);
 	}
 	
 	public void setWire(Direction direction, boolean value)
 	{
-		int index = Direction.getIndex(direction);
-		m_wires[index] = value;
+		setWireType(getWireType().withWire(direction, value));
 	}
 	
 	public void setFull()
 	{
-		for (int i = 0; i < m_numWires; ++i)
-			m_wires[i] = true;
+		setWireMask((1 << getNumWires()) - 1);
 	}
 
 	public boolean isFloating()
@@ -129,7 +135,7 @@ public class Block
 	public void toggleFloating()
 	{
 		// From an AP Computer Science exam
-		m_floating = m_floating == false;
+		setFloating(isFloating() == false);
 	}
 
 	public Color getColor()
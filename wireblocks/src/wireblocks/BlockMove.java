@@ -0,0 +1,62 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ramona Seay
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+
+package wireblocks;
+
+/* One block moving along its line, as reported by GridPhysics.settle */
+public class BlockMove
+{
+	private int m_from;
+	private int m_to;
+	private int m_distance;
+
+	public BlockMove(int from, int to, int distance)
+	{
+		m_from = from;
+		m_to = to;
+		m_distance = distance;
+	}
+
+	/* Packed index of the cell the block left */
+	public int getFrom()
+	{
+		return m_from;
+	}
+
+	/* Packed index of the cell the block ended up in */
+	public int getTo()
+	{
+		return m_to;
+	}
+
+	/* Number of cells the block fell */
+	public int getDistance()
+	{
+		return m_distance;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "[" + m_from + " -> " + m_to + "]";
+	}
+}
@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ramona Seay
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+
+package wireblocks;
+
+/*
+ * Records which cells of a Grid have changed since they were last drained.
+ * Every journal opened on a grid sees every change, so independent
+ * subsystems can each keep their own. Only changes to occupancy, wires and
+ * the floating flag are recorded; recoloring a block is not a change.
+ *
+ * Dirty cells are kept in a bitset by packed cell index, together with the
+ * list of non-zero words so that draining only visits words that have
+ * something in them.
+ */
+public class ChangeJournal
+{
+	private long[] m_dirty;
+	private int[]  m_dirtyWords;
+	private int    m_numDirtyWords;
+	private int    m_numDirty;
+
+	ChangeJournal(int indexLimit)
+	{
+		int numWords = (indexLimit + 63) >>> 6;
+		m_dirty = new long[numWords];
+		m_dirtyWords = new int[numWords];
+		m_numDirtyWords = 0;
+		m_numDirty = 0;
+	}
+
+	void markDirty(int index)
+	{
+		int word = index >>> 6;
+		long bit = 1L << index;
+		long bits = m_dirty[word];
+		if ((bits & bit) != 0) return;
+
+		if (bits == 0) m_dirtyWords[m_numDirtyWords++] = word;
+		m_dirty[word] = bits | bit;
+		m_numDirty++;
+	}
+
+	public boolean isEmpty()
+	{
+		return m_numDirty == 0;
+	}
+
+	/* Number of distinct dirty cells */
+	public int size()
+	{
+		return m_numDirty;
+	}
+
+	public boolean isDirty(int index)
+	{
+		return (m_dirty[index >>> 6] & (1L << index)) != 0;
+	}
+
+	/*
+	 * Moves up to cells.length dirty cell indices into cells and returns how
+	 * many were moved. Cells that did not fit stay dirty for the next call.
+	 */
+	public int drain(int[] cells)
+	{
+		int count = 0;
+		while (m_numDirtyWords > 0 && count < cells.length)
+		{
+			int word = m_dirtyWords[m_numDirtyWords - 1];
+			long bits = m_dirty[word];
+			while (bits != 0 && count < cells.length)
+			{
+				long lowest = bits & -bits;
+				int bit = Long.numberOfTrailingZeros(lowest);
+				cells[count++] = (word << 6) | bit;
+				bits ^= lowest;
+			}
+
+			m_dirty[word] = bits;
+			if (bits == 0) m_numDirtyWords--;
+		}
+
+		m_numDirty -= count;
+		return count;
+	}
+
+	public void clear()
+	{
+		for (int i = 0; i < m_numDirtyWords; ++i)
+			m_dirty[m_dirtyWords[i]] = 0;
+		m_numDirtyWords = 0;
+		m_numDirty = 0;
+	}
+}
@@ -0,0 +1,334 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ramona Seay
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+
+package wireblocks;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Sparse cell storage for very large boards. The board is cut into square
+ * tiles of TILE_SIZE x TILE_SIZE cells which are only allocated once a cell
+ * inside them is occupied, and are dropped again as soon as they empty out.
+ *
+ * Cell indices encode the tile and the position inside it, and the tiles of
+ * a row are padded up to a power of two, so every accessor is a couple of
+ * shifts and an array lookup. Snapshots share tiles, and a
+ * shared tile is copied the first time it is written.
+ */
+public class ChunkedGridStorage implements GridStorage
+{
+	public static final int TILE_SHIFT = 6;
+	public static final int TILE_SIZE  = 1 << TILE_SHIFT;
+
+	private static final int TILE_MASK       = TILE_SIZE - 1;
+	private static final int TILE_CELL_SHIFT = 2 * TILE_SHIFT;
+	private static final int TILE_CELLS      = 1 << TILE_CELL_SHIFT;
+	private static final int TILE_CELL_MASK  = TILE_CELLS - 1;
+	private static final int TILE_WORDS      = TILE_CELLS / 64;
+
+	/* Every storage instance draws a distinct epoch from here */
+	private static final AtomicInteger EPOCHS = new AtomicInteger();
+
+	/* Same layout as PackedGridStorage, for one tile */
+	private static final class Tile
+	{
+		private final int    m_epoch;
+		private final byte[] m_masks;
+		private final byte[] m_colors;
+		private final long[] m_occupied;
+		private final long[] m_floating;
+		private int          m_count;
+
+		public Tile(int epoch)
+		{
+			m_epoch = epoch;
+			m_masks = new byte[TILE_CELLS];
+			m_colors = new byte[TILE_CELLS];
+			m_occupied = new long[TILE_WORDS];
+			m_floating = new long[TILE_WORDS];
+			m_count = 0;
+		}
+
+		public Tile(int epoch, Tile rhs)
+		{
+			m_epoch = epoch;
+			m_masks = rhs.m_masks.clone();
+			m_colors = rhs.m_colors.clone();
+			m_occupied = rhs.m_occupied.clone();
+			m_floating = rhs.m_floating.clone();
+			m_count = rhs.m_count;
+		}
+	}
+
+	private int     m_width;
+	private int     m_height;
+	private int     m_tilesXShift;
+
+	/*
+	 * Tiles whose epoch differs from m_epoch may be shared with a snapshot
+	 * and are copied before they are written. m_sharedTiles says the same
+	 * about the m_tiles array itself.
+	 */
+	private int     m_epoch;
+	private boolean m_sharedTiles;
+	private Tile[]  m_tiles;
+
+	public ChunkedGridStorage(int width, int height)
+	{
+		m_width = width;
+		m_height = height;
+		int tilesX = (width + TILE_MASK) >>> TILE_SHIFT;
+		int tilesY = (height + TILE_MASK) >>> TILE_SHIFT;
+		m_tilesXShift = 32 - Integer.numberOfLeadingZeros(Math.max(tilesX - 1,
+		                                                           0));
+
+		long numTiles = (long)tilesY << m_tilesXShift;
+		if (numTiles * TILE_CELLS > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Grid of " + width + " x "
+			                                   + height + " is too large");
+		m_epoch = EPOCHS.incrementAndGet();
+		m_sharedTiles = false;
+		m_tiles = new Tile[(int)numTiles];
+	}
+
+	/* Shares every tile of rhs; see snapshot() */
+	private ChunkedGridStorage(ChunkedGridStorage rhs)
+	{
+		m_width = rhs.m_width;
+		m_height = rhs.m_height;
+		m_tilesXShift = rhs.m_tilesXShift;
+
+		m_epoch = EPOCHS.incrementAndGet();
+		m_sharedTiles = true;
+		m_tiles = rhs.m_tiles;
+	}
+
+	@Override
+	public int getWidth()
+	{
+		return m_width;
+	}
+
+	@Override
+	public int getHeight()
+	{
+		return m_height;
+	}
+
+	@Override
+	public int indexOf(int x, int y)
+	{
+		int tile = ((y >>> TILE_SHIFT) << m_tilesXShift) | (x >>> TILE_SHIFT);
+		int local = ((y & TILE_MASK) << TILE_SHIFT) | (x & TILE_MASK);
+		return (tile << TILE_CELL_SHIFT) | local;
+	}
+
+	@Override
+	public int getX(int index)
+	{
+		int tileX = (index >>> TILE_CELL_SHIFT) & ((1 << m_tilesXShift) - 1);
+		return (tileX << TILE_SHIFT) | (index & TILE_MASK);
+	}
+
+	@Override
+	public int getY(int index)
+	{
+		int tileY = index >>> (TILE_CELL_SHIFT + m_tilesXShift);
+		return (tileY << TILE_SHIFT) | ((index >>> TILE_SHIFT) & TILE_MASK);
+	}
+
+	@Override
+	public int getIndexLimit()
+	{
+		return m_tiles.length << TILE_CELL_SHIFT;
+	}
+
+	@Override
+	public int getTileSize()
+	{
+		return TILE_SIZE;
+	}
+
+	@Override
+	public int getTileOccupancy(int tileX, int tileY)
+	{
+		Tile tile = m_tiles[(tileY << m_tilesXShift) | tileX];
+		return tile == null? 0 : tile.m_count;
+	}
+
+	@Override
+	public GridStorage snapshot()
+	{
+		ChunkedGridStorage snapshot = new ChunkedGridStorage(this);
+
+		/* From now on every existing tile is shared */
+		m_epoch = EPOCHS.incrementAndGet();
+		m_sharedTiles = true;
+		return snapshot;
+	}
+
+	/* Tiles are square, so columns are no further apart than rows */
+	@Override
+	public void setColumnMajor(boolean columnMajor)
+	{
+	}
+
+	/* Everything lives on the heap */
+	@Override
+	public void close()
+	{
+	}
+
+	@Override
+	public boolean isOccupied(int index)
+	{
+		Tile tile = m_tiles[index >>> TILE_CELL_SHIFT];
+		if (tile == null) return false;
+		int local = index & TILE_CELL_MASK;
+		return (tile.m_occupied[local >>> 6] & (1L << local)) != 0;
+	}
+
+	@Override
+	public int getWireMask(int index)
+	{
+		Tile tile = m_tiles[index >>> TILE_CELL_SHIFT];
+		if (tile == null) return 0;
+		return tile.m_masks[index & TILE_CELL_MASK];
+	}
+
+	@Override
+	public boolean isFloating(int index)
+	{
+		Tile tile = m_tiles[index >>> TILE_CELL_SHIFT];
+		if (tile == null) return false;
+		int local = index & TILE_CELL_MASK;
+		return (tile.m_floating[local >>> 6] & (1L << local)) != 0;
+	}
+
+	@Override
+	public int getColorIndex(int index)
+	{
+		Tile tile = m_tiles[index >>> TILE_CELL_SHIFT];
+		if (tile == null) return 0;
+		return tile.m_colors[index & TILE_CELL_MASK] & 0xff;
+	}
+
+	@Override
+	public void setCell(int index, int wireMask, boolean floating,
+	                    int colorIndex)
+	{
+		Tile tile = writableTile(index >>> TILE_CELL_SHIFT, true);
+
+		int local = index & TILE_CELL_MASK;
+		long bit = 1L << local;
+		if ((tile.m_occupied[local >>> 6] & bit) == 0)
+		{
+			tile.m_occupied[local >>> 6] |= bit;
+			tile.m_count++;
+		}
+		tile.m_masks[local] = (byte)wireMask;
+		tile.m_colors[local] = (byte)colorIndex;
+		if (floating)
+			tile.m_floating[local >>> 6] |= bit;
+		else
+			tile.m_floating[local >>> 6] &= ~bit;
+	}
+
+	@Override
+	public void clearCell(int index)
+	{
+		if (!isOccupied(index)) return;
+
+		int tileIndex = index >>> TILE_CELL_SHIFT;
+		int local = index & TILE_CELL_MASK;
+		long bit = 1L << local;
+
+		/* Release the whole tile once its last cell goes away */
+		if (m_tiles[tileIndex].m_count == 1)
+		{
+			writableTiles()[tileIndex] = null;
+			return;
+		}
+
+		Tile tile = writableTile(tileIndex, false);
+		tile.m_count--;
+		tile.m_occupied[local >>> 6] &= ~bit;
+		tile.m_floating[local >>> 6] &= ~bit;
+		tile.m_masks[local] = 0;
+		tile.m_colors[local] = 0;
+	}
+
+	/* The setters below are only valid for occupied cells */
+
+	@Override
+	public void setWireMask(int index, int wireMask)
+	{
+		Tile tile = writableTile(index >>> TILE_CELL_SHIFT, false);
+		tile.m_masks[index & TILE_CELL_MASK] = (byte)wireMask;
+	}
+
+	@Override
+	public void setFloating(int index, boolean floating)
+	{
+		Tile tile = writableTile(index >>> TILE_CELL_SHIFT, false);
+		int local = index & TILE_CELL_MASK;
+		if (floating)
+			tile.m_floating[local >>> 6] |= 1L << local;
+		else
+			tile.m_floating[local >>> 6] &= ~(1L << local);
+	}
+
+	@Override
+	public void setColorIndex(int index, int colorIndex)
+	{
+		Tile tile = writableTile(index >>> TILE_CELL_SHIFT, false);
+		tile.m_colors[index & TILE_CELL_MASK] = (byte)colorIndex;
+	}
+
+	private Tile[] writableTiles()
+	{
+		if (m_sharedTiles)
+		{
+			m_tiles = m_tiles.clone();
+			m_sharedTiles = false;
+		}
+		return m_tiles;
+	}
+
+	/* Copy-on-write: make sure a tile belongs to this storage alone */
+	private Tile writableTile(int tileIndex, boolean create)
+	{
+		Tile tile = m_tiles[tileIndex];
+		if (tile == null)
+		{
+			if (!create) return null;
+			tile = new Tile(m_epoch);
+			writableTiles()[tileIndex] = tile;
+		}
+		else if (tile.m_epoch != m_epoch)
+		{
+			tile = new Tile(m_epoch, tile);
+			writableTiles()[tileIndex] = tile;
+		}
+		return tile;
+	}
+}
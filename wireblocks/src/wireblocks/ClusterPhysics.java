@@ -0,0 +1,237 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ramona Seay
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+
+package wireblocks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Gravity for whole wire clusters. Blocks wired together fall as one rigid
+ * body instead of cell by cell, and a cluster holding a floating block
+ * stays where it is. Cluster membership comes from a DynamicConnectivity
+ * kept on the grid, so it is only worked out again where the board changed.
+ *
+ * Every pass scans the board once, starting from the wall gravity points
+ * at, to group the cells by cluster in the order of their lowest cell.
+ * Each cluster's drop distance is then read off the line bitboards from
+ * its downward-facing cells, and the clusters are moved in that order, so
+ * that one resting on another that has just fallen follows it in the same
+ * pass.
+ */
+public class ClusterPhysics extends GridPhysics
+{
+	private Grid                m_grid;
+	private DynamicConnectivity m_connectivity;
+
+	/* Generation of the grid when a pass last found nothing to move */
+	private long                m_restingGeneration;
+
+	/*
+	 * Scratch for a pass. Cluster c owns slots m_starts[c] up to
+	 * m_starts[c + 1], ordered from the wall up; each slot holds a cell with
+	 * its line and depth. m_owner maps cells back to their cluster.
+	 */
+	private int[]               m_clusterOf;
+	private int[]               m_starts;
+	private int[]               m_next;
+	private boolean[]           m_anchored;
+	private int[]               m_cells;
+	private int[]               m_lines;
+	private int[]               m_depths;
+	private int[]               m_owner;
+
+	public ClusterPhysics(Direction direction)
+	{
+		super(direction);
+		m_grid = null;
+		m_connectivity = null;
+		m_restingGeneration = -1;
+	}
+
+	@Override
+	public void reverseGravity()
+	{
+		super.reverseGravity();
+		m_restingGeneration = -1;
+	}
+
+	@Override
+	public void detach()
+	{
+		super.detach();
+		if (m_connectivity != null) m_connectivity.close();
+		m_grid = null;
+		m_connectivity = null;
+	}
+
+	/* Moves every cluster that has room by one cell */
+	@Override
+	public boolean update(Grid grid)
+	{
+		return pass(grid, 1, null);
+	}
+
+	/* Drops every cluster as far as it goes, returning the cell moves */
+	@Override
+	public List<BlockMove> settle(Grid grid)
+	{
+		List<BlockMove> moves = new ArrayList<BlockMove>();
+		boolean moved = true;
+		while (moved)
+			moved = pass(grid, Integer.MAX_VALUE, moves);
+		return moves;
+	}
+
+	/*
+	 * Moves each cluster up to maxDrop cells, adding the moves to moves
+	 * unless it is null. Returns whether anything moved.
+	 */
+	private boolean pass(Grid grid, int maxDrop, List<BlockMove> moves)
+	{
+		attach(grid);
+		if (grid.getGeneration() == m_restingGeneration) return false;
+
+		int numClusters = groupClusters(grid);
+		Direction gravity = getGravity();
+		boolean moved = false;
+		for (int c = 0; c < numClusters; ++c)
+		{
+			if (m_anchored[c]) continue;
+
+			int drop = maxDrop;
+			for (int slot = m_starts[c]; slot < m_starts[c + 1]; ++slot)
+			{
+				int cell = m_cells[slot];
+				int free = grid.getDropDistance(grid.getX(cell),
+				                                grid.getY(cell), gravity);
+				if (free >= drop) continue;
+
+				/* Cells resting on their own cluster move along with it */
+				int below = m_depths[slot] - free - 1;
+				if (below >= 0
+				    && m_owner[getLineCell(grid, m_lines[slot], below)] == c)
+					continue;
+				drop = free;
+				if (drop == 0) break;
+			}
+			if (drop == 0) continue;
+
+			/* Lowest cells first, so each moves into an empty cell */
+			for (int slot = m_starts[c]; slot < m_starts[c + 1]; ++slot)
+			{
+				int cell = m_cells[slot];
+				m_depths[slot] -= drop;
+				int newCell = getLineCell(grid, m_lines[slot], m_depths[slot]);
+				grid.swapCells(cell, newCell);
+				m_cells[slot] = newCell;
+				m_owner[newCell] = c;
+				if (moves != null)
+					moves.add(new BlockMove(cell, newCell, drop));
+			}
+			moved = true;
+		}
+
+		if (!moved) m_restingGeneration = grid.getGeneration();
+		return moved;
+	}
+
+	private void attach(Grid grid)
+	{
+		if (grid == m_grid) return;
+
+		detach();
+		m_grid = grid;
+		Direction gravity = getGravity();
+		m_connectivity = new DynamicConnectivity(grid, new int[0], gravity,
+		                                         new int[0], gravity);
+		m_restingGeneration = -1;
+
+		int numCells = grid.getWidth() * grid.getHeight();
+		m_cells = new int[numCells];
+		m_lines = new int[numCells];
+		m_depths = new int[numCells];
+		m_owner = new int[grid.getIndexLimit()];
+	}
+
+	/*
+	 * Counting sort of the occupied cells by cluster, scanning outwards from
+	 * the wall so that clusters are numbered by their lowest cell and each
+	 * cluster's cells come out lowest first. Returns the number of clusters.
+	 */
+	private int groupClusters(Grid grid)
+	{
+		boolean vertical = getGravityVector().getX() == 0;
+		int numLines = vertical? grid.getWidth() : grid.getHeight();
+		int length = vertical? grid.getHeight() : grid.getWidth();
+
+		int limit = m_connectivity.getComponentLimit();
+		if (m_clusterOf == null || m_clusterOf.length < limit)
+		{
+			m_clusterOf = new int[limit];
+			m_starts = new int[limit + 1];
+			m_next = new int[limit];
+			m_anchored = new boolean[limit];
+		}
+		Arrays.fill(m_clusterOf, 0, limit, -1);
+
+		int numClusters = 0;
+		for (int depth = 0; depth < length; ++depth)
+			for (int line = 0; line < numLines; ++line)
+			{
+				int cell = getLineCell(grid, line, depth);
+				int id = m_connectivity.getComponentId(cell);
+				if (id < 0) continue;
+
+				int c = m_clusterOf[id];
+				if (c < 0)
+				{
+					c = numClusters++;
+					m_clusterOf[id] = c;
+					m_starts[c + 1] = 0;
+					m_anchored[c] = false;
+				}
+				m_starts[c + 1]++;
+				if (grid.isFloating(cell)) m_anchored[c] = true;
+				m_owner[cell] = c;
+			}
+
+		m_starts[0] = 0;
+		for (int c = 0; c < numClusters; ++c)
+			m_starts[c + 1] += m_starts[c];
+
+		System.arraycopy(m_starts, 0, m_next, 0, numClusters);
+		for (int depth = 0; depth < length; ++depth)
+			for (int line = 0; line < numLines; ++line)
+			{
+				int cell = getLineCell(grid, line, depth);
+				if (!grid.isOccupied(cell)) continue;
+
+				int slot = m_next[m_owner[cell]]++;
+				m_cells[slot] = cell;
+				m_lines[slot] = line;
+				m_depths[slot] = depth;
+			}
+		return numClusters;
+	}
+}
@@ -0,0 +1,213 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ramona Seay
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+
+package wireblocks;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Remembers the results of PathFinder.findConnectedCells for the boards it
+ * has seen lately. Results are keyed by the board's hash() together with
+ * the wall cells and wires asked about, and the least recently used one is
+ * dropped once the cache is full.
+ *
+ * Two different boards could in principle share a hash. With verification
+ * turned on, every hit is checked against a fresh search and a mismatch
+ * throws IllegalStateException; this is meant for debugging, since it
+ * costs as much as not caching at all.
+ */
+public class ConnectionCache
+{
+	private static final class Key
+	{
+		private final long      m_boardHash;
+		private final int       m_width;
+		private final int       m_height;
+		private final int[]     m_src;
+		private final Direction m_srcWire;
+		private final int[]     m_dst;
+		private final Direction m_dstWire;
+		private final int       m_hashCode;
+
+		public Key(Grid grid, int[] src, Direction srcWire, int[] dst,
+		           Direction dstWire)
+		{
+			m_boardHash = grid.hash();
+			m_width = grid.getWidth();
+			m_height = grid.getHeight();
+			m_src = src;
+			m_srcWire = srcWire;
+			m_dst = dst;
+			m_dstWire = dstWire;
+
+			int hashCode = Long.hashCode(m_boardHash);
+			hashCode = 31 * hashCode + Arrays.hashCode(src);
+			hashCode = 31 * hashCode + Arrays.hashCode(dst);
+			hashCode = 31 * hashCode + srcWire.ordinal();
+			hashCode = 31 * hashCode + dstWire.ordinal();
+			m_hashCode = hashCode;
+		}
+
+		/* The same key, holding on to copies of the wall cells */
+		public Key(Key rhs)
+		{
+			m_boardHash = rhs.m_boardHash;
+			m_width = rhs.m_width;
+			m_height = rhs.m_height;
+			m_src = rhs.m_src.clone();
+			m_srcWire = rhs.m_srcWire;
+			m_dst = rhs.m_dst.clone();
+			m_dstWire = rhs.m_dstWire;
+			m_hashCode = rhs.m_hashCode;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return m_hashCode;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof Key)) return false;
+			Key rhs = (Key)obj;
+			return m_boardHash == rhs.m_boardHash && m_width == rhs.m_width
+			       && m_height == rhs.m_height && m_srcWire == rhs.m_srcWire
+			       && m_dstWire == rhs.m_dstWire
+			       && Arrays.equals(m_src, rhs.m_src)
+			       && Arrays.equals(m_dst, rhs.m_dst);
+		}
+	}
+
+	private PathFinder      m_pathFinder;
+	private Map<Key, int[]> m_results;
+	private boolean         m_verifying;
+	private long            m_hits;
+	private long            m_misses;
+
+	public ConnectionCache(final int capacity)
+	{
+		this(new PathFinder(), capacity);
+	}
+
+	public ConnectionCache(PathFinder pathFinder, final int capacity)
+	{
+		if (capacity < 1)
+			throw new IllegalArgumentException("Cache capacity must be "
+			                                   + "positive: " + capacity);
+		m_pathFinder = pathFinder;
+		m_results = new LinkedHashMap<Key, int[]>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, int[]> eldest)
+			{
+				return size() > capacity;
+			}
+		};
+		m_verifying = false;
+		m_hits = 0;
+		m_misses = 0;
+	}
+
+	/*
+	 * Same as PathFinder.findConnectedCells, answered from the cache when
+	 * the board and walls have been seen before. The returned array belongs
+	 * to the caller.
+	 */
+	public int[] findConnectedCells(Grid grid, int[] src, Direction srcWire,
+	                                int[] dst, Direction dstWire)
+	{
+		Key key = new Key(grid, src, srcWire, dst, dstWire);
+		int[] cells = m_results.get(key);
+		if (cells == null)
+		{
+			m_misses++;
+			cells = m_pathFinder.findConnectedCells(grid, src, srcWire, dst,
+			                                        dstWire);
+			m_results.put(new Key(key), cells);
+			return cells.clone();
+		}
+
+		m_hits++;
+		if (m_verifying)
+		{
+			int[] expected = m_pathFinder.findConnectedCells(grid, src,
+			                                                 srcWire, dst,
+			                                                 dstWire);
+			if (!Arrays.equals(cells, expected))
+			{
+				String hash = Long.toHexString(key.m_boardHash);
+				throw new IllegalStateException("Cached connection for board "
+				                                + hash + " is wrong");
+			}
+		}
+		return cells.clone();
+	}
+
+	public boolean isVerifying()
+	{
+		return m_verifying;
+	}
+
+	public void setVerifying(boolean verifying)
+	{
+		m_verifying = verifying;
+	}
+
+	public int size()
+	{
+		return m_results.size();
+	}
+
+	public void clear()
+	{
+		m_results.clear();
+	}
+
+	public long getHits()
+	{
+		return m_hits;
+	}
+
+	public long getMisses()
+	{
+		return m_misses;
+	}
+
+	/* Fraction of lookups answered from the cache, or zero before any */
+	public double getHitRate()
+	{
+		long lookups = m_hits + m_misses;
+		return lookups == 0? 0 : (double)m_hits / lookups;
+	}
+
+	public void resetStatistics()
+	{
+		m_hits = 0;
+		m_misses = 0;
+	}
+}
@@ -0,0 +1,262 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ramona Seay
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+
+package wireblocks;
+
+/*
+ * Keeps track of whether two walls of a grid are joined by wires, kept up to
+ * date from a ChangeJournal instead of searching the board again. The cells
+ * form a disjoint-set forest together with two virtual nodes, one for the
+ * source wall and one for the target wall; a wall cell with a wire pointing
+ * into its wall is joined to that wall's node. The walls are connected
+ * exactly when the two virtual nodes share a root.
+ *
+ * Adding blocks or wires only ever merges sets, so those changes are applied
+ * as they come. A disjoint-set forest cannot split, so any change that breaks
+ * an existing link rebuilds the forest from the board in one linear pass.
+ * The forest is only brought up to date when it is queried.
+ */
+public class ConnectivityIndex
+{
+	/* m_cellState holds OCCUPIED | wire mask, or zero for an empty cell */
+	private static final int OCCUPIED = 0x10;
+
+	private Grid          m_grid;
+	private ChangeJournal m_journal;
+	private int           m_srcNode;
+	private int           m_dstNode;
+	private long[]        m_srcCells;
+	private long[]        m_dstCells;
+	private int           m_srcMask;
+	private int           m_dstMask;
+
+	private int[]         m_parent;
+	private byte[]        m_rank;
+	private byte[]        m_cellState;
+	private int[]         m_drained;
+	private int           m_rebuilds;
+
+	/*
+	 * src and dst are the packed indices of the cells along each wall, and
+	 * srcWire and dstWire the directions pointing into the walls.
+	 */
+	public ConnectivityIndex(Grid grid, int[] src, Direction srcWire,
+	                         int[] dst, Direction dstWire)
+	{
+		int limit = grid.getIndexLimit();
+		m_grid = grid;
+		m_journal = grid.openJournal();
+		m_srcNode = limit;
+		m_dstNode = limit + 1;
+		m_srcCells = toBitset(src, limit);
+		m_dstCells = toBitset(dst, limit);
+		m_srcMask = srcWire.getMask();
+		m_dstMask = dstWire.getMask();
+
+		m_parent = new int[limit + 2];
+		m_rank = new byte[limit + 2];
+		m_cellState = new byte[limit];
+		m_drained = new int[256];
+		m_rebuilds = 0;
+		rebuild();
+	}
+
+	/* Stops following the grid */
+	public void close()
+	{
+		m_grid.closeJournal(m_journal);
+	}
+
+	/* True if some chain of connected wires runs from wall to wall */
+	public boolean isConnected()
+	{
+		update();
+		return find(m_srcNode) == find(m_dstNode);
+	}
+
+	/* True if the wires join the two cells, given as packed indices */
+	public boolean isConnected(int cellA, int cellB)
+	{
+		update();
+		return find(cellA) == find(cellB);
+	}
+
+	/* Number of times the forest had to be rebuilt from scratch */
+	public int getRebuildCount()
+	{
+		return m_rebuilds;
+	}
+
+	/* Applies the changes recorded since the last query */
+	private void update()
+	{
+		int count;
+		while ((count = m_journal.drain(m_drained)) > 0)
+		{
+			for (int i = 0; i < count; ++i)
+			{
+				int cell = m_drained[i];
+				if (lostLink(cell))
+				{
+					m_journal.clear();
+					rebuild();
+					return;
+				}
+
+				m_cellState[cell] = (byte)readState(cell);
+				linkCell(cell);
+			}
+		}
+	}
+
+	private void rebuild()
+	{
+		for (int i = 0; i < m_parent.length; ++i)
+		{
+			m_parent[i] = i;
+			m_rank[i] = 0;
+		}
+
+		int width = m_grid.getWidth();
+		int height = m_grid.getHeight();
+		for (int y = 0; y < height; ++y)
+			for (int x = 0; x < width; ++x)
+			{
+				int cell = m_grid.getIndex(x, y);
+				m_cellState[cell] = (byte)readState(cell);
+			}
+
+		/* Linking every cell joins each pair of neighbors from both ends */
+		for (int y = 0; y < height; ++y)
+			for (int x = 0; x < width; ++x)
+				linkCell(m_grid.getIndex(x, y));
+		m_rebuilds++;
+	}
+
+	private int readState(int cell)
+	{
+		if (!m_grid.isOccupied(cell)) return 0;
+		return OCCUPIED | m_grid.getWireMask(cell);
+	}
+
+	/* Joins cell to every neighbor and wall its current wires reach */
+	private void linkCell(int cell)
+	{
+		int state = m_cellState[cell];
+		if (state == 0) return;
+
+		if ((state & m_srcMask) != 0 && contains(m_srcCells, cell))
+			union(cell, m_srcNode);
+		if ((state & m_dstMask) != 0 && contains(m_dstCells, cell))
+			union(cell, m_dstNode);
+
+		for (Direction direction : Direction.toArray())
+		{
+			if ((state & direction.getMask()) == 0) continue;
+			int neighbor = m_grid.getNeighbor(cell, direction);
+			if (neighbor < 0) continue;
+
+			int reverse = direction.reverse().getMask();
+			if (m_cellState[neighbor] == 0) continue;
+			if ((m_cellState[neighbor] & reverse) == 0) continue;
+			union(cell, neighbor);
+		}
+	}
+
+	/*
+	 * Whether a link the forest knows about, from cell to a neighbor or a
+	 * wall, is missing from the board now. Compares the recorded states
+	 * against the grid.
+	 */
+	private boolean lostLink(int cell)
+	{
+		int oldState = m_cellState[cell];
+		if (oldState == 0) return false;
+
+		int newState = readState(cell);
+		if (newState == 0) return true;
+
+		if ((oldState & m_srcMask) != 0 && (newState & m_srcMask) == 0
+		    && contains(m_srcCells, cell))
+			return true;
+		if ((oldState & m_dstMask) != 0 && (newState & m_dstMask) == 0
+		    && contains(m_dstCells, cell))
+			return true;
+
+		for (Direction direction : Direction.toArray())
+		{
+			int wire = direction.getMask();
+			if ((oldState & wire) == 0) continue;
+			int neighbor = m_grid.getNeighbor(cell, direction);
+			if (neighbor < 0) continue;
+
+			int reverse = direction.reverse().getMask();
+			if ((m_cellState[neighbor] & reverse) == 0) continue;
+
+			/* The link existed; make sure both ends still have their wire */
+			if ((newState & wire) == 0) return true;
+			if ((readState(neighbor) & reverse) == 0) return true;
+		}
+		return false;
+	}
+
+	private int find(int node)
+	{
+		while (m_parent[node] != node)
+		{
+			/* Path halving */
+			m_parent[node] = m_parent[m_parent[node]];
+			node = m_parent[node];
+		}
+		return node;
+	}
+
+	private void union(int a, int b)
+	{
+		int rootA = find(a);
+		int rootB = find(b);
+		if (rootA == rootB) return;
+
+		if (m_rank[rootA] < m_rank[rootB])
+			m_parent[rootA] = rootB;
+		else if (m_rank[rootA] > m_rank[rootB])
+			m_parent[rootB] = rootA;
+		else
+		{
+			m_parent[rootB] = rootA;
+			m_rank[rootA]++;
+		}
+	}
+
+	private static long[] toBitset(int[] cells, int limit)
+	{
+		long[] ret = new long[(limit + 63) >>> 6];
+		for (int cell : cells)
+			ret[cell >>> 6] |= 1L << cell;
+		return ret;
+	}
+
+	private static boolean contains(long[] bitset, int cell)
+	{
+		return (bitset[cell >>> 6] & (1L << cell)) != 0;
+	}
+}
@@ -0,0 +1,304 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ramona Seay
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+
+package wireblocks;
+
+/*
+ * The cells a wall-to-wall circuit cannot do without. For every wire
+ * component that joins the src wall to the dst wall, a cell is critical
+ * when removing it would leave that component no longer joining them, and
+ * a link is critical when cutting it would do the same. Wire links to the
+ * walls count as links, so a cell with the only wire into a wall is
+ * critical too.
+ *
+ * All of it comes out of one iterative Tarjan search per spanning
+ * component, with the two walls added as extra nodes: a cell is critical
+ * when it is an articulation point with the dst wall below it in the
+ * search tree, and a link when it is a bridge on the way there. The whole
+ * board costs O(cells), and the report describes the board at the time it
+ * was built.
+ */
+public class CriticalCells
+{
+	/* Directions by wire bit */
+	private static final Direction[] DIRECTIONS = Direction.toArray();
+
+	/* Bits of m_walls: wired into the wall, and already bucketed */
+	private static final int SRC_WIRED  = 1;
+	private static final int DST_WIRED  = 2;
+	private static final int SRC_QUEUED = 4;
+	private static final int DST_QUEUED = 8;
+
+	/* Edge numbers of a cell past its four wires */
+	private static final int SRC_EDGE = 4;
+	private static final int DST_EDGE = 5;
+	private static final int NO_EDGE  = -1;
+	private static final int END      = -2;
+
+	private int[]     m_components;
+	private int[]     m_cells;
+	private int[]     m_starts;
+	private boolean[] m_critical;
+	private byte[]    m_criticalLinks;
+
+	/* Scratch state of the search */
+	private Grid      m_grid;
+	private int       m_srcNode;
+	private int       m_dstNode;
+	private byte[]    m_walls;
+	private int[]     m_wallCells;
+	private int       m_srcStart;
+	private int       m_srcEnd;
+	private int       m_dstStart;
+	private int       m_dstEnd;
+
+	public CriticalCells(Grid grid, int[] src, Direction srcWire, int[] dst,
+	                     Direction dstWire)
+	{
+		this(grid, src, srcWire, dst, dstWire, new RegionLabeler());
+	}
+
+	public CriticalCells(Grid grid, int[] src, Direction srcWire, int[] dst,
+	                     Direction dstWire, RegionLabeler labeler)
+	{
+		int limit = grid.getIndexLimit();
+		int[] labels = new int[limit];
+		int numRegions = labeler.label(grid, labels);
+
+		m_grid = grid;
+		m_srcNode = limit;
+		m_dstNode = limit + 1;
+		m_walls = new byte[limit];
+		m_critical = new boolean[limit];
+		m_criticalLinks = new byte[limit];
+
+		/* Wired wall cells, bucketed by region: src ones, then dst ones */
+		int[] srcStarts = new int[numRegions + 1];
+		int[] dstStarts = new int[numRegions + 1];
+		int numSrc = markWall(src, srcWire, labels, SRC_WIRED, srcStarts);
+		int numDst = markWall(dst, dstWire, labels, DST_WIRED, dstStarts);
+		m_wallCells = new int[numSrc + numDst];
+		bucketWall(src, labels, SRC_WIRED, SRC_QUEUED, srcStarts, 0);
+		bucketWall(dst, labels, DST_WIRED, DST_QUEUED, dstStarts, numSrc);
+
+		int numSpanning = 0;
+		for (int r = 0; r < numRegions; ++r)
+			if (srcStarts[r + 1] > srcStarts[r]
+			    && dstStarts[r + 1] > dstStarts[r]) numSpanning++;
+		m_components = new int[numSpanning];
+		m_starts = new int[numSpanning + 1];
+
+		int[] disc = new int[limit + 2];
+		int[] low = new int[limit + 2];
+		int[] next = new int[limit + 2];
+		int[] stack = new int[limit + 2];
+		boolean[] reachesDst = new boolean[limit + 2];
+		int[] cells = new int[limit];
+		int numCells = 0;
+		int time = 0;
+		int spanning = 0;
+		for (int r = 0; r < numRegions; ++r)
+		{
+			m_srcStart = srcStarts[r];
+			m_srcEnd = srcStarts[r + 1];
+			m_dstStart = numSrc + dstStarts[r];
+			m_dstEnd = numSrc + dstStarts[r + 1];
+			if (m_srcStart == m_srcEnd || m_dstStart == m_dstEnd) continue;
+
+			m_components[spanning] = r;
+			m_starts[spanning] = numCells;
+
+			/* The wall nodes are shared by every component, so reset them */
+			disc[m_dstNode] = 0;
+			int size = 0;
+			stack[size++] = m_srcNode;
+			disc[m_srcNode] = low[m_srcNode] = ++time;
+			next[m_srcNode] = 0;
+			reachesDst[m_srcNode] = false;
+			while (size > 0)
+			{
+				int node = stack[size - 1];
+				int edge = next[node]++;
+				int other = follow(node, edge);
+				if (other == NO_EDGE) continue;
+				if (other == END)
+				{
+					if (--size == 0) break;
+
+					/* Back at the parent, which holds the edge down */
+					int parent = stack[size - 1];
+					low[parent] = Math.min(low[parent], low[node]);
+					if (!reachesDst[node]) continue;
+					reachesDst[parent] = true;
+					if (low[node] >= disc[parent] && parent < limit
+					    && !m_critical[parent])
+					{
+						m_critical[parent] = true;
+						cells[numCells++] = parent;
+					}
+					if (low[node] > disc[parent])
+						markLink(parent, next[parent] - 1, node, srcWire,
+						         dstWire);
+					continue;
+				}
+
+				if (size > 1 && other == stack[size - 2]) continue;
+				if (disc[other] != 0)
+				{
+					low[node] = Math.min(low[node], disc[other]);
+					continue;
+				}
+
+				disc[other] = low[other] = ++time;
+				next[other] = 0;
+				reachesDst[other] = other == m_dstNode;
+				stack[size++] = other;
+			}
+			spanning++;
+		}
+		m_starts[numSpanning] = numCells;
+		m_cells = new int[numCells];
+		System.arraycopy(cells, 0, m_cells, 0, numCells);
+
+		m_grid = null;
+		m_walls = null;
+		m_wallCells = null;
+	}
+
+	/* Number of components joining the two walls */
+	public int getNumSpanning()
+	{
+		return m_components.length;
+	}
+
+	/* Region of a spanning component, as numbered by RegionLabeler */
+	public int getComponent(int spanning)
+	{
+		return m_components[spanning];
+	}
+
+	/* Critical cells of one spanning component */
+	public int[] getCriticalCells(int spanning)
+	{
+		int length = m_starts[spanning + 1] - m_starts[spanning];
+		int[] ret = new int[length];
+		System.arraycopy(m_cells, m_starts[spanning], ret, 0, length);
+		return ret;
+	}
+
+	/* Critical cells of every spanning component together */
+	public int[] getCriticalCells()
+	{
+		return m_cells.clone();
+	}
+
+	public boolean isCritical(int cell)
+	{
+		return m_critical[cell];
+	}
+
+	/*
+	 * Direction mask of the critical links of a cell. A link to a wall shows
+	 * up as the wire pointing into that wall.
+	 */
+	public int getCriticalLinks(int cell)
+	{
+		return m_criticalLinks[cell];
+	}
+
+	/* Flags the wired cells of a wall and counts them per region */
+	private int markWall(int[] wall, Direction wire, int[] labels, int flag,
+	                     int[] starts)
+	{
+		int count = 0;
+		for (int cell : wall)
+		{
+			if (!m_grid.isOccupied(cell) || !m_grid.hasWire(cell, wire))
+				continue;
+			if ((m_walls[cell] & flag) != 0) continue;
+			m_walls[cell] |= flag;
+			starts[labels[cell] + 1]++;
+			count++;
+		}
+		for (int r = 1; r < starts.length; ++r)
+			starts[r] += starts[r - 1];
+		return count;
+	}
+
+	/* Duplicates were only counted once, so they are only queued once */
+	private void bucketWall(int[] wall, int[] labels, int flag, int queued,
+	                        int[] starts, int offset)
+	{
+		int[] next = starts.clone();
+		for (int cell : wall)
+		{
+			if ((m_walls[cell] & (flag | queued)) != flag) continue;
+			m_walls[cell] |= queued;
+			m_wallCells[offset + next[labels[cell]]++] = cell;
+		}
+	}
+
+	/*
+	 * The node at the far end of edge number edge of node, NO_EDGE when that
+	 * edge does not exist, or END once node has no edges left.
+	 */
+	private int follow(int node, int edge)
+	{
+		if (node == m_srcNode)
+			return m_srcStart + edge < m_srcEnd?
+			       m_wallCells[m_srcStart + edge] : END;
+		if (node == m_dstNode)
+			return m_dstStart + edge < m_dstEnd?
+			       m_wallCells[m_dstStart + edge] : END;
+
+		if (edge == SRC_EDGE)
+			return (m_walls[node] & SRC_WIRED) != 0? m_srcNode : NO_EDGE;
+		if (edge == DST_EDGE)
+			return (m_walls[node] & DST_WIRED) != 0? m_dstNode : NO_EDGE;
+		if (edge > DST_EDGE) return END;
+
+		Direction direction = DIRECTIONS[edge];
+		if (!m_grid.hasWire(node, direction)) return NO_EDGE;
+		int other = m_grid.getNeighbor(node, direction);
+		if (other < 0 || !m_grid.isOccupied(other)
+		    || !m_grid.hasWire(other, direction.reverse())) return NO_EDGE;
+		return other;
+	}
+
+	/* Records the bridge from parent along its edge number edge to child */
+	private void markLink(int parent, int edge, int child, Direction srcWire,
+	                      Direction dstWire)
+	{
+		if (parent == m_srcNode)
+			m_criticalLinks[child] |= srcWire.getMask();
+		else if (parent == m_dstNode)
+			m_criticalLinks[child] |= dstWire.getMask();
+		else if (child == m_dstNode)
+			m_criticalLinks[parent] |= dstWire.getMask();
+		else
+		{
+			Direction direction = DIRECTIONS[edge];
+			m_criticalLinks[parent] |= direction.getMask();
+			m_criticalLinks[child] |= direction.reverse().getMask();
+		}
+	}
+}
@@ -80,11 +80,15 @@ public enum Direction
 		return Direction.DIRECTION_ARRAY.length;
 	}
 
+	/* DIRECTION_ARRAY follows declaration order, so the ordinal is the index */
 	public static int getIndex(Direction direction)
 	{
-		for (int i = 0; i < Direction.DIRECTION_ARRAY.length; ++i)
-			if (Direction.DIRECTION_ARRAY[i] == direction) return i;
-		/* TODO: Throw an invalid argument exception */
-		return -1;
+		return direction.ordinal();
+	}
+
+	/* Bit for this direction in a block's wire mask */
+	public int getMask()
+	{
+		return 1 << ordinal();
 	}
 }
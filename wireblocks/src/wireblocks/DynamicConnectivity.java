@@ -0,0 +1,596 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ramona Seay
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+
+package wireblocks;
+
+import java.util.Arrays;
+
+/*
+ * Connected wire components of a grid, kept up to date as blocks are added,
+ * removed, rewired and moved. Unlike ConnectivityIndex this copes with links
+ * disappearing without looking at the whole board again.
+ *
+ * Changes that only add links merge components, relabeling the smaller one
+ * into the larger. When links break, a search starts from each cell that
+ * lost one. The searches run in lockstep over the old component; two that
+ * meet are known to still be connected and carry on as one, and a group of
+ * searches that runs out of cells has found a piece that split off. As soon
+ * as a single group is left the rest of the component is known to hold
+ * together, so the work is bounded by the size of the pieces that actually
+ * split off rather than by the component, let alone the board.
+ *
+ * Each component counts its cells wired into the source and target walls,
+ * so asking whether the walls are joined takes constant time, and listing
+ * the cells that join them takes time proportional to the answer. Changes
+ * are picked up from a ChangeJournal when the structure is next queried.
+ */
+public class DynamicConnectivity
+{
+	/* m_cellState holds OCCUPIED | wire mask, or zero for an empty cell */
+	private static final int OCCUPIED = 0x10;
+
+	/* Growable list of ints */
+	private static final class IntList
+	{
+		private int[] m_items = new int[16];
+		private int   m_size  = 0;
+
+		public void add(int item)
+		{
+			if (m_size == m_items.length)
+				m_items = Arrays.copyOf(m_items, 2 * m_items.length);
+			m_items[m_size++] = item;
+		}
+	}
+
+	private Grid          m_grid;
+	private ChangeJournal m_journal;
+	private long[]        m_srcCells;
+	private long[]        m_dstCells;
+	private int           m_srcMask;
+	private int           m_dstMask;
+
+	/* Per cell */
+	private byte[]        m_cellState;
+	private int[]         m_component;
+	private int[]         m_memberPos;
+
+	/* Per component id; ids of emptied components are reused */
+	private IntList[]     m_members;
+	private int[]         m_srcCounts;
+	private int[]         m_dstCounts;
+	private int[]         m_openGroups;
+	private IntList       m_freeIds;
+	private int           m_numIds;
+	private int           m_numSpanning;
+
+	/* Scratch for update() */
+	private int[]         m_drained;
+	private IntList       m_dirty;
+	private IntList       m_pending;
+	private IntList       m_seeds;
+	private int[]         m_queue;
+
+	/*
+	 * Scratch for split(). m_visit tags each cell with the search that
+	 * reached it, offset by a stamp so that it never has to be cleared.
+	 */
+	private int[]         m_visit;
+	private int           m_stamp;
+	private IntList[]     m_searchCells;
+	private int[]         m_searchHead;
+	private int[]         m_searchGroup;
+	private int[]         m_searchComponent;
+
+	/*
+	 * src and dst are the packed indices of the cells along each wall, and
+	 * srcWire and dstWire the directions pointing into the walls.
+	 */
+	public DynamicConnectivity(Grid grid, int[] src, Direction srcWire,
+	                           int[] dst, Direction dstWire)
+	{
+		int limit = grid.getIndexLimit();
+		m_grid = grid;
+		m_journal = grid.openJournal();
+		m_srcCells = toBitset(src, limit);
+		m_dstCells = toBitset(dst, limit);
+		m_srcMask = srcWire.getMask();
+		m_dstMask = dstWire.getMask();
+
+		m_cellState = new byte[limit];
+		m_component = new int[limit];
+		m_memberPos = new int[limit];
+
+		m_members = new IntList[16];
+		m_srcCounts = new int[16];
+		m_dstCounts = new int[16];
+		m_openGroups = new int[16];
+		m_freeIds = new IntList();
+		m_numIds = 0;
+		m_numSpanning = 0;
+
+		m_drained = new int[256];
+		m_dirty = new IntList();
+		m_pending = new IntList();
+		m_seeds = new IntList();
+		m_queue = new int[grid.getWidth() * grid.getHeight()];
+
+		m_visit = new int[limit];
+		m_stamp = 1;
+		m_searchCells = new IntList[0];
+		m_searchHead = new int[0];
+		m_searchGroup = new int[0];
+		m_searchComponent = new int[0];
+
+		for (int y = 0; y < grid.getHeight(); ++y)
+			for (int x = 0; x < grid.getWidth(); ++x)
+			{
+				int cell = grid.getIndex(x, y);
+				m_component[cell] = -1;
+				m_cellState[cell] = (byte)readState(cell);
+				if (m_cellState[cell] != 0) m_pending.add(cell);
+			}
+		labelPending();
+	}
+
+	/* Stops following the grid */
+	public void close()
+	{
+		m_grid.closeJournal(m_journal);
+	}
+
+	/* True if some component is wired into both walls */
+	public boolean isConnected()
+	{
+		update();
+		return m_numSpanning > 0;
+	}
+
+	/* True if the wires join the two cells, given as packed indices */
+	public boolean isConnected(int cellA, int cellB)
+	{
+		update();
+		return m_component[cellA] >= 0
+		       && m_component[cellA] == m_component[cellB];
+	}
+
+	/* Number of cells wired together with cell, or zero if it is empty */
+	public int getComponentSize(int cell)
+	{
+		update();
+		int component = m_component[cell];
+		return component < 0? 0 : m_members[component].m_size;
+	}
+
+	/*
+	 * Writes every cell of the components joining the two walls into out,
+	 * which must have room for every cell of the grid, and returns how many
+	 * there are. These are the cells findConnectedCells would report.
+	 */
+	public int getSpanningCells(int[] out)
+	{
+		update();
+		int count = 0;
+		if (m_numSpanning == 0) return count;
+
+		for (int id = 0; id < m_numIds; ++id)
+		{
+			if (!isSpanning(id)) continue;
+			IntList members = m_members[id];
+			System.arraycopy(members.m_items, 0, out, count, members.m_size);
+			count += members.m_size;
+		}
+		return count;
+	}
+
+	/*
+	 * Component id of cell, or -1 if it is empty. Ids are only stable until
+	 * the grid next changes, and all lie below getComponentLimit().
+	 */
+	int getComponentId(int cell)
+	{
+		update();
+		return m_component[cell];
+	}
+
+	int getComponentLimit()
+	{
+		update();
+		return m_numIds;
+	}
+
+	/* Applies the changes recorded since the last query */
+	private void update()
+	{
+		if (m_journal.isEmpty()) return;
+
+		/* Find the broken links before the recorded states are replaced */
+		int count;
+		m_dirty.m_size = 0;
+		m_seeds.m_size = 0;
+		while ((count = m_journal.drain(m_drained)) > 0)
+			for (int i = 0; i < count; ++i)
+			{
+				int cell = m_drained[i];
+				m_dirty.add(cell);
+				if (m_component[cell] >= 0) collectSeeds(cell);
+			}
+
+		for (int i = 0; i < m_dirty.m_size; ++i)
+		{
+			int cell = m_dirty.m_items[i];
+			int id = m_component[cell];
+			if (id >= 0) countWalls(id, cell, -1);
+			m_cellState[cell] = (byte)readState(cell);
+			if (id >= 0)
+			{
+				if (m_cellState[cell] == 0)
+					removeMember(id, cell);
+				else
+					countWalls(id, cell, 1);
+			}
+			m_pending.add(cell);
+		}
+
+		split();
+		labelPending();
+	}
+
+	/*
+	 * Adds both ends of every link of cell that the board no longer has to
+	 * m_seeds. Uses the recorded states, which still describe the links the
+	 * components were built from.
+	 */
+	private void collectSeeds(int cell)
+	{
+		int oldState = m_cellState[cell];
+		int newState = readState(cell);
+		for (Direction direction : Direction.toArray())
+		{
+			int wire = direction.getMask();
+			if ((oldState & wire) == 0) continue;
+			int neighbor = linkedNeighbor(cell, direction);
+			if (neighbor < 0) continue;
+
+			int reverse = direction.reverse().getMask();
+			if ((newState & wire) != 0 && (readState(neighbor) & reverse) != 0)
+				continue;
+
+			m_seeds.add(neighbor);
+			if (newState != 0) m_seeds.add(cell);
+		}
+	}
+
+	/*
+	 * Runs one search from every seed, a cell at a time in turn, within the
+	 * seed's component. Searches that meet join into one group. A group that
+	 * runs out of cells while others in its component are still going is a
+	 * piece that has come loose and gets a component of its own. A component
+	 * is done once it is down to one group.
+	 */
+	private void split()
+	{
+		int numSeeds = m_seeds.m_size;
+		if (numSeeds == 0) return;
+
+		growSearches(numSeeds);
+		if (m_stamp > Integer.MAX_VALUE - numSeeds)
+		{
+			Arrays.fill(m_visit, 0);
+			m_stamp = 1;
+		}
+		int base = m_stamp;
+		m_stamp += numSeeds;
+
+		int numSearches = 0;
+		for (int i = 0; i < numSeeds; ++i)
+		{
+			int cell = m_seeds.m_items[i];
+			int id = m_component[cell];
+			if (id < 0 || m_visit[cell] >= base) continue;
+
+			int search = numSearches++;
+			m_visit[cell] = base + search;
+			m_searchCells[search].m_size = 0;
+			m_searchCells[search].add(cell);
+			m_searchHead[search] = 0;
+			m_searchGroup[search] = search;
+			m_searchComponent[search] = id;
+			m_openGroups[id]++;
+		}
+
+		boolean progress = true;
+		while (progress)
+		{
+			progress = false;
+			for (int search = 0; search < numSearches; ++search)
+			{
+				int id = m_searchComponent[search];
+				IntList cells = m_searchCells[search];
+				if (m_openGroups[id] <= 1) continue;
+				if (m_searchHead[search] == cells.m_size) continue;
+				progress = true;
+
+				int cell = cells.m_items[m_searchHead[search]++];
+				int state = m_cellState[cell];
+				for (Direction direction : Direction.toArray())
+				{
+					if ((state & direction.getMask()) == 0) continue;
+					int neighbor = linkedNeighbor(cell, direction);
+					if (neighbor < 0 || m_component[neighbor] != id) continue;
+
+					if (m_visit[neighbor] >= base)
+					{
+						joinSearches(search, m_visit[neighbor] - base);
+						continue;
+					}
+					m_visit[neighbor] = base + search;
+					cells.add(neighbor);
+				}
+
+				if (m_searchHead[search] == cells.m_size)
+					finishSearch(search, numSearches);
+			}
+		}
+
+		for (int search = 0; search < numSearches; ++search)
+			m_openGroups[m_searchComponent[search]] = 0;
+	}
+
+	private int findGroup(int search)
+	{
+		while (m_searchGroup[search] != search)
+		{
+			m_searchGroup[search] = m_searchGroup[m_searchGroup[search]];
+			search = m_searchGroup[search];
+		}
+		return search;
+	}
+
+	private void joinSearches(int a, int b)
+	{
+		int groupA = findGroup(a);
+		int groupB = findGroup(b);
+		if (groupA == groupB) return;
+
+		m_searchGroup[groupB] = groupA;
+		m_openGroups[m_searchComponent[a]]--;
+	}
+
+	/*
+	 * Called when a search runs dry. If its whole group has, and other
+	 * groups in the component are still open, the group's cells split off.
+	 */
+	private void finishSearch(int search, int numSearches)
+	{
+		int id = m_searchComponent[search];
+		if (m_openGroups[id] <= 1) return;
+
+		int group = findGroup(search);
+		for (int other = 0; other < numSearches; ++other)
+		{
+			if (findGroup(other) != group) continue;
+			if (m_searchHead[other] < m_searchCells[other].m_size) return;
+		}
+
+		int piece = newComponent();
+		for (int other = 0; other < numSearches; ++other)
+		{
+			if (findGroup(other) != group) continue;
+			IntList cells = m_searchCells[other];
+			for (int i = 0; i < cells.m_size; ++i)
+			{
+				int cell = cells.m_items[i];
+				countWalls(id, cell, -1);
+				removeMember(id, cell);
+				addMember(piece, cell);
+			}
+		}
+		m_openGroups[id]--;
+	}
+
+	private void growSearches(int numSearches)
+	{
+		if (m_searchCells.length >= numSearches) return;
+
+		int capacity = Math.max(numSearches, 2 * m_searchCells.length);
+		IntList[] searchCells = Arrays.copyOf(m_searchCells, capacity);
+		for (int i = m_searchCells.length; i < capacity; ++i)
+			searchCells[i] = new IntList();
+		m_searchCells = searchCells;
+		m_searchHead = new int[capacity];
+		m_searchGroup = new int[capacity];
+		m_searchComponent = new int[capacity];
+	}
+
+	/*
+	 * Gives every unlabeled cell in m_pending a component, then merges the
+	 * pending cells' components with any they are now linked to.
+	 */
+	private void labelPending()
+	{
+		int[] pending = m_pending.m_items;
+		int numPending = m_pending.m_size;
+		for (int i = 0; i < numPending; ++i)
+		{
+			int cell = pending[i];
+			if (m_cellState[cell] != 0 && m_component[cell] < 0)
+				labelFrom(cell);
+		}
+
+		for (int i = 0; i < numPending; ++i)
+		{
+			int cell = pending[i];
+			int state = m_cellState[cell];
+			for (Direction direction : Direction.toArray())
+			{
+				if ((state & direction.getMask()) == 0) continue;
+				int neighbor = linkedNeighbor(cell, direction);
+				if (neighbor < 0) continue;
+				merge(m_component[cell], m_component[neighbor]);
+			}
+		}
+		m_pending.m_size = 0;
+	}
+
+	/* Breadth-first search over the unlabeled cells linked to start */
+	private void labelFrom(int start)
+	{
+		int id = newComponent();
+		int head = 0;
+		int tail = 0;
+		m_queue[tail++] = start;
+		addMember(id, start);
+		while (head < tail)
+		{
+			int cell = m_queue[head++];
+			int state = m_cellState[cell];
+			for (Direction direction : Direction.toArray())
+			{
+				if ((state & direction.getMask()) == 0) continue;
+				int neighbor = linkedNeighbor(cell, direction);
+				if (neighbor < 0 || m_component[neighbor] >= 0) continue;
+				addMember(id, neighbor);
+				m_queue[tail++] = neighbor;
+			}
+		}
+	}
+
+	/* The neighbor whose wire meets cell's wire in direction, or -1 */
+	private int linkedNeighbor(int cell, Direction direction)
+	{
+		int neighbor = m_grid.getNeighbor(cell, direction);
+		if (neighbor < 0) return -1;
+		int reverse = direction.reverse().getMask();
+		if ((m_cellState[neighbor] & reverse) == 0) return -1;
+		return neighbor;
+	}
+
+	private int readState(int cell)
+	{
+		if (!m_grid.isOccupied(cell)) return 0;
+		return OCCUPIED | m_grid.getWireMask(cell);
+	}
+
+	private boolean isSpanning(int id)
+	{
+		return m_srcCounts[id] > 0 && m_dstCounts[id] > 0;
+	}
+
+	private int newComponent()
+	{
+		if (m_freeIds.m_size > 0)
+			return m_freeIds.m_items[--m_freeIds.m_size];
+
+		if (m_numIds == m_members.length)
+		{
+			int capacity = 2 * m_members.length;
+			m_members = Arrays.copyOf(m_members, capacity);
+			m_srcCounts = Arrays.copyOf(m_srcCounts, capacity);
+			m_dstCounts = Arrays.copyOf(m_dstCounts, capacity);
+			m_openGroups = Arrays.copyOf(m_openGroups, capacity);
+		}
+		m_members[m_numIds] = new IntList();
+		return m_numIds++;
+	}
+
+	private void addMember(int id, int cell)
+	{
+		m_component[cell] = id;
+		m_memberPos[cell] = m_members[id].m_size;
+		m_members[id].add(cell);
+		countWalls(id, cell, 1);
+	}
+
+	/*
+	 * Takes cell out of the member list of id; the wall counts are left to
+	 * the caller. An emptied component is recycled.
+	 */
+	private void removeMember(int id, int cell)
+	{
+		IntList members = m_members[id];
+		int pos = m_memberPos[cell];
+		int last = members.m_items[--members.m_size];
+		members.m_items[pos] = last;
+		m_memberPos[last] = pos;
+		m_component[cell] = -1;
+		if (members.m_size == 0) m_freeIds.add(id);
+	}
+
+	/* Adds delta to the wall counts of id for the walls cell is wired into */
+	private void countWalls(int id, int cell, int delta)
+	{
+		boolean wasSpanning = isSpanning(id);
+		int state = m_cellState[cell];
+		if ((state & m_srcMask) != 0 && contains(m_srcCells, cell))
+			m_srcCounts[id] += delta;
+		if ((state & m_dstMask) != 0 && contains(m_dstCells, cell))
+			m_dstCounts[id] += delta;
+		if (wasSpanning != isSpanning(id))
+			m_numSpanning += wasSpanning? -1 : 1;
+	}
+
+	/* Relabels the smaller of two components into the larger */
+	private void merge(int a, int b)
+	{
+		if (a == b) return;
+		if (m_members[a].m_size < m_members[b].m_size)
+		{
+			int swap = a;
+			a = b;
+			b = swap;
+		}
+
+		if (isSpanning(a)) m_numSpanning--;
+		if (isSpanning(b)) m_numSpanning--;
+
+		IntList members = m_members[b];
+		for (int i = 0; i < members.m_size; ++i)
+		{
+			int cell = members.m_items[i];
+			m_component[cell] = a;
+			m_memberPos[cell] = m_members[a].m_size;
+			m_members[a].add(cell);
+		}
+		m_srcCounts[a] += m_srcCounts[b];
+		m_dstCounts[a] += m_dstCounts[b];
+		if (isSpanning(a)) m_numSpanning++;
+
+		members.m_size = 0;
+		m_srcCounts[b] = 0;
+		m_dstCounts[b] = 0;
+		m_freeIds.add(b);
+	}
+
+	private static long[] toBitset(int[] cells, int limit)
+	{
+		long[] ret = new long[(limit + 63) >>> 6];
+		for (int cell : cells)
+			ret[cell >>> 6] |= 1L << cell;
+		return ret;
+	}
+
+	private static boolean contains(long[] bitset, int cell)
+	{
+		return (bitset[cell >>> 6] & (1L << cell)) != 0;
+	}
+}
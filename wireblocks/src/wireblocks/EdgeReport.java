@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ramona Seay
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+
+package wireblocks;
+
+/*
+ * For every wire component of a board, which of the four board edges it
+ * reaches with a wire pointing out through that edge. Built with a single
+ * labeling pass, after which the cells spanning any pair of edges can be
+ * listed without searching again; all six pairs together cost O(cells).
+ *
+ * The report describes the board at the time it was built.
+ */
+public class EdgeReport
+{
+	private int   m_numComponents;
+	private int[] m_labels;
+	private int[] m_edgeMasks;
+
+	/* Cells grouped by component: component c owns m_cells[m_starts[c]..] */
+	private int[] m_cells;
+	private int[] m_starts;
+
+	public EdgeReport(Grid grid)
+	{
+		this(grid, new RegionLabeler());
+	}
+
+	public EdgeReport(Grid grid, RegionLabeler labeler)
+	{
+		m_labels = new int[grid.getIndexLimit()];
+		m_numComponents = labeler.label(grid, m_labels);
+		m_edgeMasks = new int[m_numComponents];
+		m_starts = new int[m_numComponents + 1];
+
+		int width = grid.getWidth();
+		int height = grid.getHeight();
+		for (int y = 0; y < height; ++y)
+			for (int x = 0; x < width; ++x)
+			{
+				int cell = grid.getIndex(x, y);
+				int component = m_labels[cell];
+				if (component < 0) continue;
+
+				m_starts[component + 1]++;
+				int mask = grid.getWireMask(cell);
+				int edges = 0;
+				if (y == 0) edges |= Direction.NORTH.getMask();
+				if (x == width - 1) edges |= Direction.EAST.getMask();
+				if (y == height - 1) edges |= Direction.SOUTH.getMask();
+				if (x == 0) edges |= Direction.WEST.getMask();
+				m_edgeMasks[component] |= mask & edges;
+			}
+
+		/* Counting sort of the cells by component */
+		for (int c = 0; c < m_numComponents; ++c)
+			m_starts[c + 1] += m_starts[c];
+		m_cells = new int[m_starts[m_numComponents]];
+		int[] next = m_starts.clone();
+		for (int y = 0; y < height; ++y)
+			for (int x = 0; x < width; ++x)
+			{
+				int cell = grid.getIndex(x, y);
+				int component = m_labels[cell];
+				if (component >= 0) m_cells[next[component]++] = cell;
+			}
+	}
+
+	public int getNumComponents()
+	{
+		return m_numComponents;
+	}
+
+	/* Component of a packed cell index, or -1 for an empty cell */
+	public int getComponent(int cell)
+	{
+		return m_labels[cell];
+	}
+
+	/* Direction masks of the edges a component reaches */
+	public int getEdgeMask(int component)
+	{
+		return m_edgeMasks[component];
+	}
+
+	public boolean touches(int component, Direction edge)
+	{
+		return (m_edgeMasks[component] & edge.getMask()) != 0;
+	}
+
+	/* True if some component reaches both edges */
+	public boolean isSpanned(Direction a, Direction b)
+	{
+		int edges = a.getMask() | b.getMask();
+		for (int c = 0; c < m_numComponents; ++c)
+			if ((m_edgeMasks[c] & edges) == edges) return true;
+		return false;
+	}
+
+	/*
+	 * Writes the cells of every component reaching both edges into out and
+	 * returns their number. For WEST and EAST these are the cells
+	 * PathFinder.findConnectedCells returns for the west and east walls.
+	 */
+	public int getSpanningCells(Direction a, Direction b, int[] out)
+	{
+		int edges = a.getMask() | b.getMask();
+		int count = 0;
+		for (int c = 0; c < m_numComponents; ++c)
+		{
+			if ((m_edgeMasks[c] & edges) != edges) continue;
+			int length = m_starts[c + 1] - m_starts[c];
+			System.arraycopy(m_cells, m_starts[c], out, count, length);
+			count += length;
+		}
+		return count;
+	}
+
+	public int[] getSpanningCells(Direction a, Direction b)
+	{
+		int edges = a.getMask() | b.getMask();
+		int count = 0;
+		for (int c = 0; c < m_numComponents; ++c)
+			if ((m_edgeMasks[c] & edges) == edges)
+				count += m_starts[c + 1] - m_starts[c];
+
+		int[] ret = new int[count];
+		getSpanningCells(a, b, ret);
+		return ret;
+	}
+
+	/* Cells of one component */
+	public int[] getCells(int component)
+	{
+		int length = m_starts[component + 1] - m_starts[component];
+		int[] ret = new int[length];
+		System.arraycopy(m_cells, m_starts[component], ret, 0, length);
+		return ret;
+	}
+}
@@ -0,0 +1,362 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ramona Seay
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+
+package wireblocks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Gravity driven by landing events rather than by scanning every tick.
+ * Under GridPhysics.update everything that hangs over a gap falls one cell
+ * per tick, so a line only changes character when its lowest falling block
+ * lands, and the time of that landing is known as soon as the line is
+ * looked at. Each line with something falling has one such event, and the
+ * events are kept in a heap keyed by time.
+ *
+ * Lines are brought up to date lazily: advanceToNextEvent jumps the clock
+ * to the earliest landing and only moves the blocks of that line, so a
+ * long fall costs one event instead of one scan per tick, and an event
+ * costs O(log lines) plus the line itself. The other lines keep their
+ * falling blocks where they were last seen until sync is called. Call sync
+ * before reading or writing lines that may still be falling; a change to
+ * a line that is behind is applied as if it had happened when the line was
+ * last brought up to date.
+ *
+ * update and settle work as in GridPhysics and keep the whole board
+ * current.
+ */
+public class EventPhysics extends GridPhysics
+{
+	private Grid          m_grid;
+	private ChangeJournal m_journal;
+	private boolean       m_rescheduleAll;
+	private int[]         m_changed;
+
+	/* The clock, in ticks of update, and the time each line was synced */
+	private long          m_time;
+	private long[]        m_lineTimes;
+
+	/* Min-heap of the lines that have a landing ahead, by event time */
+	private long[]        m_eventTimes;
+	private int[]         m_heap;
+	private int[]         m_heapPos;
+	private int           m_heapSize;
+
+	public EventPhysics(Direction direction)
+	{
+		super(direction);
+		m_grid = null;
+		m_journal = null;
+		m_rescheduleAll = true;
+		m_changed = new int[256];
+		m_time = 0;
+	}
+
+	@Override
+	public void reverseGravity()
+	{
+		/* Everything in flight has to land where the old gravity had it */
+		if (m_grid != null) sync(m_grid);
+		super.reverseGravity();
+		m_rescheduleAll = true;
+	}
+
+	@Override
+	public void detach()
+	{
+		super.detach();
+		if (m_grid != null) m_grid.closeJournal(m_journal);
+		m_grid = null;
+		m_journal = null;
+	}
+
+	/* Number of ticks simulated so far */
+	public long getTime()
+	{
+		return m_time;
+	}
+
+	/* Time of the next landing, or -1 if nothing is falling */
+	public long getNextEventTime(Grid grid)
+	{
+		refresh(grid);
+		return m_heapSize == 0? -1 : m_eventTimes[m_heap[0]];
+	}
+
+	/*
+	 * Moves the clock to the next landing and brings the line it happens in
+	 * up to date. Returns the moves made in that line, or an empty list if
+	 * nothing is falling.
+	 */
+	public List<BlockMove> advanceToNextEvent(Grid grid)
+	{
+		refresh(grid);
+		List<BlockMove> moves = new ArrayList<BlockMove>();
+		if (m_heapSize == 0) return moves;
+
+		int line = m_heap[0];
+		m_time = m_eventTimes[line];
+		syncLine(grid, line, moves);
+		schedule(grid, line);
+		m_journal.clear();
+		return moves;
+	}
+
+	/* Brings every line up to the current time */
+	public void sync(Grid grid)
+	{
+		refresh(grid);
+		int numLines = copyHeap();
+		for (int i = 0; i < numLines; ++i)
+			syncLine(grid, m_changed[i], null);
+		m_journal.clear();
+	}
+
+	/* Advances the clock by one tick, keeping the whole board current */
+	@Override
+	public boolean update(Grid grid)
+	{
+		refresh(grid);
+		m_time++;
+		if (m_heapSize == 0) return false;
+
+		int numLines = copyHeap();
+		for (int i = 0; i < numLines; ++i)
+		{
+			int line = m_changed[i];
+			syncLine(grid, line, null);
+			if (m_eventTimes[line] <= m_time) schedule(grid, line);
+		}
+		m_journal.clear();
+		return true;
+	}
+
+	/* Runs the clock on to the last landing in one pass over the board */
+	@Override
+	public List<BlockMove> settle(Grid grid)
+	{
+		sync(grid);
+		m_heapSize = 0;
+		List<BlockMove> moves = super.settle(grid);
+
+		/*
+		 * A block falls one cell per tick until it comes to rest, so the last
+		 * one lands as many ticks from now as the longest move
+		 */
+		int ticks = 0;
+		for (BlockMove move : moves)
+			ticks = Math.max(ticks, move.getDistance());
+		m_time += ticks;
+		m_rescheduleAll = true;
+		return moves;
+	}
+
+	/* Attaches to grid and reschedules the lines changed from outside */
+	private void refresh(Grid grid)
+	{
+		if (grid != m_grid)
+		{
+			detach();
+			m_grid = grid;
+			m_journal = grid.openJournal();
+			int maxLines = Math.max(grid.getWidth(), grid.getHeight());
+			m_lineTimes = new long[maxLines];
+			m_eventTimes = new long[maxLines];
+			m_heap = new int[maxLines];
+			m_heapPos = new int[maxLines];
+			m_rescheduleAll = true;
+		}
+
+		if (m_rescheduleAll)
+		{
+			grid.alignTo(getGravity());
+			m_journal.clear();
+			m_heapSize = 0;
+			Arrays.fill(m_heapPos, -1);
+			for (int line = 0; line < getNumLines(grid); ++line)
+			{
+				m_lineTimes[line] = m_time;
+				schedule(grid, line);
+			}
+			m_rescheduleAll = false;
+			return;
+		}
+
+		boolean vertical = getGravityVector().getX() == 0;
+		int count;
+		while ((count = m_journal.drain(m_changed)) > 0)
+			for (int i = 0; i < count; ++i)
+			{
+				int cell = m_changed[i];
+				int line = vertical? grid.getX(cell) : grid.getY(cell);
+				syncLine(grid, line, null);
+				schedule(grid, line);
+			}
+		m_journal.clear();
+	}
+
+	/*
+	 * Lets the blocks of line fall for the ticks since it was last synced.
+	 * Everything falls at one cell per tick, so each block ends up that many
+	 * cells further down or resting on whatever is below it, whichever comes
+	 * first; that is what the same number of updates would do.
+	 */
+	private void syncLine(Grid grid, int line, List<BlockMove> moves)
+	{
+		long ticks = m_time - m_lineTimes[line];
+		m_lineTimes[line] = m_time;
+		if (ticks <= 0 || m_heapPos[line] < 0) return;
+
+		int length = getLineLength(grid);
+		int floor = 0;
+		for (int depth = 0; depth < length; ++depth)
+		{
+			int cell = getLineCell(grid, line, depth);
+			if (!grid.isOccupied(cell)) continue;
+			if (grid.isFloating(cell))
+			{
+				floor = depth + 1;
+				continue;
+			}
+
+			int newDepth = (int)Math.max(floor, depth - ticks);
+			if (newDepth != depth)
+			{
+				int newCell = getLineCell(grid, line, newDepth);
+				grid.swapCells(cell, newCell);
+				if (moves != null)
+					moves.add(new BlockMove(cell, newCell, depth - newDepth));
+			}
+			floor = newDepth + 1;
+		}
+	}
+
+	/* Finds the next landing in line and files it in the heap */
+	private void schedule(Grid grid, int line)
+	{
+		int length = getLineLength(grid);
+		int floor = 0;
+		int gap = 0;
+		for (int depth = 0; depth < length && gap == 0; ++depth)
+		{
+			int cell = getLineCell(grid, line, depth);
+			if (!grid.isOccupied(cell)) continue;
+			if (grid.isFloating(cell))
+				floor = depth + 1;
+			else if (depth > floor)
+				gap = depth - floor;
+			else
+				floor++;
+		}
+
+		if (gap == 0)
+			removeEvent(line);
+		else
+			setEvent(line, m_time + gap);
+	}
+
+	private int getNumLines(Grid grid)
+	{
+		boolean vertical = getGravityVector().getX() == 0;
+		return vertical? grid.getWidth() : grid.getHeight();
+	}
+
+	private int getLineLength(Grid grid)
+	{
+		boolean vertical = getGravityVector().getX() == 0;
+		return vertical? grid.getHeight() : grid.getWidth();
+	}
+
+	/* Copies the lines in the heap to m_changed, returning their number */
+	private int copyHeap()
+	{
+		if (m_changed.length < m_heapSize) m_changed = new int[m_heap.length];
+		System.arraycopy(m_heap, 0, m_changed, 0, m_heapSize);
+		return m_heapSize;
+	}
+
+	/* Indexed binary heap; m_heapPos is -1 for lines not in it */
+
+	private void setEvent(int line, long time)
+	{
+		int pos = m_heapPos[line];
+		if (pos < 0)
+		{
+			pos = m_heapSize++;
+			m_heap[pos] = line;
+			m_heapPos[line] = pos;
+		}
+		m_eventTimes[line] = time;
+		siftUp(pos);
+		siftDown(m_heapPos[line]);
+	}
+
+	private void removeEvent(int line)
+	{
+		int pos = m_heapPos[line];
+		if (pos < 0) return;
+
+		m_heapPos[line] = -1;
+		int last = m_heap[--m_heapSize];
+		if (pos == m_heapSize) return;
+		m_heap[pos] = last;
+		m_heapPos[last] = pos;
+		siftUp(pos);
+		siftDown(m_heapPos[last]);
+	}
+
+	private void siftUp(int pos)
+	{
+		int line = m_heap[pos];
+		while (pos > 0)
+		{
+			int parent = (pos - 1) >>> 1;
+			if (m_eventTimes[m_heap[parent]] <= m_eventTimes[line]) break;
+			m_heap[pos] = m_heap[parent];
+			m_heapPos[m_heap[pos]] = pos;
+			pos = parent;
+		}
+		m_heap[pos] = line;
+		m_heapPos[line] = pos;
+	}
+
+	private void siftDown(int pos)
+	{
+		int line = m_heap[pos];
+		while (true)
+		{
+			int child = 2 * pos + 1;
+			if (child >= m_heapSize) break;
+			if (child + 1 < m_heapSize
+			    && m_eventTimes[m_heap[child + 1]]
+			       < m_eventTimes[m_heap[child]]) child++;
+			if (m_eventTimes[m_heap[child]] >= m_eventTimes[line]) break;
+			m_heap[pos] = m_heap[child];
+			m_heapPos[m_heap[pos]] = pos;
+			pos = child;
+		}
+		m_heap[pos] = line;
+		m_heapPos[line] = pos;
+	}
+}
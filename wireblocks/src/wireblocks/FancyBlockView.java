@@ -36,35 +36,17 @@ public class FancyBlockView implements BlockView
 {
 	private int           m_size;
 	Map<String, Image>    m_images;
-	Map<Integer, String>  m_imageNameMap;
-	Map<Integer, Integer> m_rotationMap;
 	
 	public FancyBlockView()
 	{
 		m_size = 32;
 		m_images = new HashMap<String, Image>();
-		m_imageNameMap = new HashMap<Integer, String>();
-		m_rotationMap = new HashMap<Integer, Integer>();
 
+		/* Which image and turn each layout uses is kept by WireType */
 		addImage("4WayWire");
 		addImage("LWire");
 		addImage("StraightWire");
 		addImage("3WayWire");
-
-		addTile(new boolean[] { true, true, false, false }, "LWire", 0);
-		addTile(new boolean[] { false, true, true, false }, "LWire", 1);
-		addTile(new boolean[] { false, false, true, true }, "LWire", 2);
-		addTile(new boolean[] { true, false, false, true }, "LWire", 3);
-
-		addTile(new boolean[] { false, true, false, true }, "StraightWire", 0);
-		addTile(new boolean[] { true, false, true, false }, "StraightWire", 1);
-
-		addTile(new boolean[] { true, true, false, true }, "3WayWire", 0);
-		addTile(new boolean[] { true, true, true, false }, "3WayWire", 1);
-		addTile(new boolean[] { false, true, true, true }, "3WayWire", 2);
-		addTile(new boolean[] { true, false, true, true }, "3WayWire", 3);
-
-		addTile(new boolean[] { true, true, true, true }, "4WayWire", 0);
 	}
 
 	private void addImage(String name)
@@ -81,26 +63,6 @@ public class FancyBlockView implements BlockView
 			System.err.println("Error: " + e.getMessage());
 		}
 	}
-
-	private int indexOf(boolean[] wires)
-	{
-		int ret = 0;
-		int pow = 1;
-		for (boolean wire : wires)
-		{
-			if (wire) ret += pow;
-			pow *= 2;
-		}
-		
-		return ret;
-	}
-
-	private void addTile(boolean[] wires, String name, int rotation)
-	{
-		int index = indexOf(wires);
-		m_imageNameMap.put(index, name);
-		m_rotationMap.put(index, rotation);
-	}
 	
 	@Override
 	public Vector2i getDims()
@@ -111,14 +73,10 @@ public class FancyBlockView implements BlockView
 	@Override
 	public void display(Graphics2D g2d, Block block, Vector2i corner)
 	{
-		/* Hash this block */
-		boolean[] wires = block.getWires();
-		int index = indexOf(wires);
-
 		/* Look up information on this block */
-		String name = m_imageNameMap.get(index);
-		Image image = m_images.get(name);
-		int rotation = m_rotationMap.get(index);
+		WireType type = block.getWireType();
+		Image image = m_images.get(type.getImageName());
+		int rotation = type.getImageRotation();
 
 		/* Compute the angle of rotation in radians */
 		double theta = rotation * Math.PI / 2.0;
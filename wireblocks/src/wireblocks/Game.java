@@ -24,19 +24,31 @@ package wireblocks;
 
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.swing.JFrame;
 
 public class Game implements KeyListener
 {
-	private JFrame      m_frame;
-	private Grid        m_grid;
-	private GridView    m_gridView;
-	private GridPhysics m_gridPhysics;
-	private GridPainter m_gridPainter;
-	private Polyomino   m_polyomino;
-	private PathFinder  m_pathFinder;
-	private boolean     m_updatingPhysics;
+	private JFrame              m_frame;
+	private Grid                m_grid;
+	private GridView            m_gridView;
+	private GridPhysics         m_gridPhysics;
+	private GridPainter         m_gridPainter;
+	private Polyomino           m_polyomino;
+	private DynamicConnectivity m_connectivity;
+	private int[]               m_connectedCells;
+	private boolean             m_updatingPhysics;
+	private boolean             m_gameOver;
+	private int[]               m_westCells;
+	private int[]               m_eastCells;
+
+	/*
+	 * Input handlers run on the EDT, but only the game thread touches the
+	 * grid, so they queue their work here for the start of the next tick
+	 */
+	private Queue<Runnable>     m_input;
 
 	public Game()
 	{
@@ -49,15 +61,21 @@ public class Game implements KeyListener
 		m_grid = new Grid(8, 16);
 		// m_grid = new Grid(6, 10);
 		// m_grid.randomize();
-		m_gridView = new GridView(m_grid);
+		m_input = new ConcurrentLinkedQueue<Runnable>();
+		m_gridView = new GridView(m_grid, m_input);
 		m_frame.add(m_gridView);
 		
 		m_gridPhysics = new GridPhysics(Direction.SOUTH);
 		m_gridPainter = new GridPainter(m_grid);
+		m_gameOver = false;
 
 		buildNextPiece();
 
-		m_pathFinder = new PathFinder();
+		buildWallCells();
+		m_connectivity = new DynamicConnectivity(m_grid, m_westCells,
+		                                         Direction.WEST, m_eastCells,
+		                                         Direction.EAST);
+		m_connectedCells = new int[m_grid.getWidth() * m_grid.getHeight()];
 
 		// Put this at the end to recursively make all components visible
 		m_frame.setVisible(true);
@@ -66,9 +84,29 @@ public class Game implements KeyListener
 
 	private void buildNextPiece()
 	{
-		m_polyomino = new Polyomino();
+		Polyomino polyomino = new Polyomino();
+		if (isStackedOut() || !polyomino.canPlaceInGrid(m_grid, m_gridPhysics))
+		{
+			m_gameOver = true;
+			m_gridView.showGameOver();
+			return;
+		}
+
+		m_polyomino = polyomino;
 		m_polyomino.placeInGrid(m_grid, m_gridPhysics);
 	}
+
+	/* Whether some line has been stacked all the way up to the spawn wall */
+	private boolean isStackedOut()
+	{
+		Direction gravity = m_gridPhysics.getGravity();
+		boolean vertical = gravity.toVector().getX() == 0;
+		int numLines = vertical? m_grid.getWidth() : m_grid.getHeight();
+		int length = vertical? m_grid.getHeight() : m_grid.getWidth();
+		for (int line = 0; line < numLines; ++line)
+			if (m_grid.getStackHeight(line, gravity) >= length) return true;
+		return false;
+	}
 	
 	private void signalUpdatePhysics()
 	{
@@ -87,37 +125,52 @@ public class Game implements KeyListener
 		sleepDelay = 100;
 		while (true)
 		{
+			processInput();
 			if (m_updatingPhysics)
 				updatePhysics();
 			else
 			{
-				if (m_polyomino == null) buildNextPiece();
+				if (m_polyomino == null && !m_gameOver) buildNextPiece();
 				
 				checkConnections();
 			}
+			m_gridView.takeSnapshot();
 			m_frame.repaint();
 			Thread.sleep(sleepDelay);
 		}
 	}
 	
-	private void checkConnections()
+	/* Runs the input queued up since the last tick */
+	private void processInput()
+	{
+		Runnable task;
+		while ((task = m_input.poll()) != null)
+			task.run();
+	}
+
+	/* Cells along the west and east walls, as packed indices */
+	private void buildWallCells()
 	{
 		int width = m_grid.getWidth();
 		int height = m_grid.getHeight();
-		Vector2i[] src = new Vector2i[height];
-		Vector2i[] dst = new Vector2i[height];
+		m_westCells = new int[height];
+		m_eastCells = new int[height];
 		for (int y = 0; y < height; ++y)
 		{
-			src[y] = new Vector2i(0, y);
-			dst[y] = new Vector2i(width - 1, y);
+			m_westCells[y] = m_grid.getIndex(0, y);
+			m_eastCells[y] = m_grid.getIndex(width - 1, y);
 		}
-		Vector2i[] marked = m_pathFinder
-		        .findConnectedCells(m_grid, src, Direction.WEST, dst,
-		                            Direction.EAST);
-		for (Vector2i loc : marked)
-			// m_grid.getBlock(loc).setActivated(true);
-			m_grid.setBlock(loc, null);
-		if (marked.length > 0)
+	}
+	
+	private void checkConnections()
+	{
+		/* Only look for the cells once the walls are actually joined */
+		if (!m_connectivity.isConnected()) return;
+
+		int numMarked = m_connectivity.getSpanningCells(m_connectedCells);
+		for (int i = 0; i < numMarked; ++i)
+			m_grid.clearCell(m_connectedCells[i]);
+		if (numMarked > 0)
 		{
 			m_gridPainter.shuffleColors();
 			signalUpdatePhysics();
@@ -133,14 +186,19 @@ public class Game implements KeyListener
 	
 	@Override
 	public void keyPressed(KeyEvent e)
+	{
+		int key = e.getKeyCode();
+		m_input.add(() -> handleKey(key));
+	}
+
+	private void handleKey(int key)
 	{
 		/* Make sure we have a piece queued up first */
 		if (m_polyomino == null) return;
 
-		int key = e.getKeyCode();
 		if (key == KeyEvent.VK_UP)
 		{
-			m_polyomino.release();
+			m_polyomino.release(m_grid, m_gridPhysics);
 			m_polyomino = null;
 			signalUpdatePhysics();
 		}
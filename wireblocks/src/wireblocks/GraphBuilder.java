@@ -34,10 +34,16 @@ public class GraphBuilder
 	private Graph                 m_graph;
 	private Map<Integer, Integer> m_regions;
 	private int                   m_numRegions;
+
+	/* Region of every cell by packed grid index, or -1 for empty cells */
+	private int[]                 m_cellRegions;
+
+	private RegionLabeler         m_labeler;
 	
 	public GraphBuilder(Grid grid)
 	{
 		m_grid = grid;
+		m_labeler = new RegionLabeler();
 	}
 	
 	public int indexOf(Vector2i v)
@@ -47,6 +53,18 @@ public class GraphBuilder
 		return y * m_grid.getWidth() + x;
 	}
 	
+	/* Convert a packed grid index into the index used by getRegions */
+	public int indexOfCell(int cell)
+	{
+		return m_grid.getY(cell) * m_grid.getWidth() + m_grid.getX(cell);
+	}
+
+	/* Region of a packed grid cell as of the last buildGraph, or -1 */
+	public int getRegionOfCell(int cell)
+	{
+		return m_cellRegions[cell];
+	}
+	
 	public Vector2i reverseIndex(int index)
 	{
 		int x = index % m_grid.getWidth();
@@ -88,80 +106,46 @@ public class GraphBuilder
 	private void computeConnectedRegions()
 	{
 		m_regions = new HashMap<Integer, Integer>();
-		m_numRegions = 0;
+		m_cellRegions = new int[m_grid.getIndexLimit()];
+		m_numRegions = m_labeler.label(m_grid, m_cellRegions);
 		for (int x = 0; x < m_grid.getWidth(); ++x)
 			for (int y = 0; y < m_grid.getHeight(); ++y)
-				markRegion(new Vector2i(x, y), -1);
-	}
-	
-	private void markRegion(Vector2i cell, int region)
-	{
-		Block curBlock = m_grid.getBlock(cell);
-		if (curBlock == null) return;
-		
-		int index = indexOf(cell);
-		if (m_regions.containsKey(index)) return;
-
-		int newRegion = region;
-		if (region < 0) newRegion = m_numRegions++;
-		m_regions.put(index, newRegion);
-		System.out.println("Mapping cell " + cell + " to region " + newRegion);
-		
-		for (Direction direction : Direction.toArray())
-		{
-			/* Make sure the block has a wire in this direction first */
-			if (!curBlock.hasWire(direction)) continue;
-
-			Vector2i vel = direction.toVector();
-			Vector2i newLoc = cell.add(vel);
-
-			/* Make sure we're still in bounds */
-			if (!m_grid.isInBounds(newLoc)) continue;
-
-			/* Check there is actually a block in the neighboring cell */
-			Block newBlock = m_grid.getBlock(newLoc);
-			if (newBlock == null) continue;
-
-			/*
-			 * Make sure the other block also has a wire coming in from that
-			 * direction
-			 */
-			Direction reverse = direction.reverse();
-			if (!newBlock.hasWire(reverse)) continue;
-
-			/* Recursively descend */
-			markRegion(newLoc, newRegion);
-		}
+			{
+				int cell = m_grid.getIndex(x, y);
+				int region = m_cellRegions[cell];
+				if (region < 0) continue;
+
+				int index = indexOfCell(cell);
+				m_regions.put(index, region);
+				System.out.println("Mapping cell " + reverseIndex(index)
+				                   + " to region " + region);
+			}
 	}
 	
 	private void computeEdges()
 	{
 		for (int x = 0; x < m_grid.getWidth(); ++x)
 			for (int y = 0; y < m_grid.getHeight(); ++y)
-				computeEdgesOfCell(new Vector2i(x, y));
+				computeEdgesOfCell(m_grid.getIndex(x, y));
 	}
 	
-	private void computeEdgesOfCell(Vector2i cell)
+	private void computeEdgesOfCell(int cell)
 	{
-		Block curBlock = m_grid.getBlock(cell);
-		if (curBlock == null) return;
+		if (!m_grid.isOccupied(cell)) return;
 		
-		int region = m_regions.get(indexOf(cell));
+		int region = m_cellRegions[cell];
 		
 		for (Direction direction : Direction.toArray())
 		{
-			Vector2i vel = direction.toVector();
-			Vector2i newLoc = cell.add(vel);
-
 			/* Make sure we're still in bounds */
-			if (!m_grid.isInBounds(newLoc)) continue;
+			int newCell = m_grid.getNeighbor(cell, direction);
+			if (newCell < 0) continue;
 
 			/* Check there is actually a block in the neighboring cell */
-			Block newBlock = m_grid.getBlock(newLoc);
-			if (newBlock == null) continue;
+			if (!m_grid.isOccupied(newCell)) continue;
 
 			/* Check if the two cells are in different regions */
-			int newRegion = m_regions.get(indexOf(newLoc));
+			int newRegion = m_cellRegions[newCell];
 			if (region == newRegion) continue;
 
 			/* Check if this edge has already been added */
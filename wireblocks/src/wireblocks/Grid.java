@@ -22,51 +22,371 @@
 
 package wireblocks;
 
-public class Grid
+import java.awt.Color;
+
+public class Grid implements AutoCloseable
 {
-	private int       m_width;
-	private int       m_height;
-	private Block[][] m_blocks;
+	private static final int MAX_PALETTE_SIZE = 256;
+
+	/* Fixed so that hash() gives the same value from run to run */
+	private static final long HASH_SEED = 0x5eedb10c4a1177a5L;
+
+	private int         m_width;
+	private int         m_height;
+	private GridStorage m_storage;
+	private boolean     m_readOnly;
+
+	/* Bumped on every change to occupancy, wires or floating flags */
+	private long            m_generation;
+	private ChangeJournal[] m_journals;
+
+	/* Built on first use, then kept up to date by every write */
+	private LineBoards      m_lines;
+	private WireBoards      m_wires;
+
+	/* Computed on first use, then updated by every write; see hash() */
+	private boolean         m_hashed;
+	private long            m_hash;
+
+	/* Never modified in place, so snapshots can share it */
+	private Color[]     m_palette;
 
 	public Grid(int rows, int cols)
 	{
-		m_width = rows;
-		m_height = cols;
-		m_blocks = new Block[rows][cols];
-		for (int x = 0; x < m_width; ++x)
+		this(new PackedGridStorage(rows, cols));
+	}
+
+	public Grid(GridStorage storage)
+	{
+		this(storage, false);
+	}
+
+	Grid(GridStorage storage, boolean readOnly)
+	{
+		m_width = storage.getWidth();
+		m_height = storage.getHeight();
+		m_storage = storage;
+		m_readOnly = readOnly;
+		m_generation = 0;
+		m_journals = new ChangeJournal[0];
+		m_lines = null;
+		m_wires = null;
+		m_hashed = false;
+		m_hash = 0;
+
+		/* Palette index zero is reserved for uncolored blocks */
+		m_palette = new Color[] { Block.NO_COLOR };
+	}
+
+	private Grid(Grid rhs, boolean readOnly)
+	{
+		m_width = rhs.m_width;
+		m_height = rhs.m_height;
+		m_storage = rhs.m_storage.snapshot();
+		m_readOnly = readOnly;
+		m_generation = rhs.m_generation;
+		m_journals = new ChangeJournal[0];
+		m_lines = null;
+		m_wires = null;
+		m_hashed = rhs.m_hashed;
+		m_hash = rhs.m_hash;
+		m_palette = rhs.m_palette;
+	}
+
+	/*
+	 * Returns a read-only view of the board as it is right now. Taking a
+	 * snapshot does not depend on the board size: the two grids share their
+	 * cells, and later writes to this grid copy just the rows or tiles they
+	 * touch. A snapshot can be handed to another thread as long as it is
+	 * published safely. Grids on OffHeapGridStorage cannot be snapshotted and
+	 * throw UnsupportedOperationException.
+	 */
+	public Grid snapshot()
+	{
+		return new Grid(this, true);
+	}
+
+	/* Like snapshot(), but the returned grid can be modified as well */
+	public Grid copy()
+	{
+		return new Grid(this, false);
+	}
+
+	/*
+	 * Lays the cells out in memory along the lines blocks fall in under
+	 * gravity: columns for north and south, rows for east and west, so that
+	 * walking a line reads memory in order. Only PackedGridStorage changes
+	 * its layout; cell indices and contents stay the same, so journals and
+	 * anything else holding on to indices are unaffected.
+	 */
+	public void alignTo(Direction gravity)
+	{
+		m_storage.setColumnMajor(gravity.toVector().getX() == 0);
+	}
+
+	public boolean isReadOnly()
+	{
+		return m_readOnly;
+	}
+
+	/*
+	 * Releases the memory of storages that live outside the Java heap, such
+	 * as OffHeapGridStorage. The grid must not be used afterwards. Closing a
+	 * grid on heap storage has no effect.
+	 */
+	@Override
+	public void close()
+	{
+		m_storage.close();
+	}
+
+	/*
+	 * Counts the changes made to the board. Two equal readings mean no cell
+	 * was added, removed, rewired or had its floating flag changed in between,
+	 * so callers can compare against the last value they saw to skip work.
+	 * Recoloring blocks does not count as a change. Snapshots and copies start
+	 * from the generation of the grid they were taken from.
+	 */
+	public long getGeneration()
+	{
+		return m_generation;
+	}
+
+	/*
+	 * A 64-bit Zobrist fingerprint of the board. Every occupied cell
+	 * contributes a pseudo-random key picked by its position, wire mask and
+	 * floating flag, and the hash is the xor of those keys, so empty cells
+	 * and colors do not count. The keys come from a fixed seed, so equal
+	 * boards hash equally across runs and storages. The first call scans the
+	 * board; after that every write keeps the hash current and calls are
+	 * O(1). Snapshots and copies start from the hash of their source grid.
+	 */
+	public long hash()
+	{
+		if (!m_hashed)
+		{
+			long hash = 0;
 			for (int y = 0; y < m_height; ++y)
-				m_blocks[x][y] = null;
+				for (int x = 0; x < m_width; ++x)
+					hash ^= keyOf(m_storage.indexOf(x, y));
+			m_hash = hash;
+			m_hashed = true;
+		}
+		return m_hash;
+	}
+
+	/*
+	 * Starts recording the cells that change from now on. The journal keeps
+	 * collecting until it is passed to closeJournal.
+	 */
+	public ChangeJournal openJournal()
+	{
+		ChangeJournal journal = new ChangeJournal(m_storage.getIndexLimit());
+		ChangeJournal[] journals = new ChangeJournal[m_journals.length + 1];
+		System.arraycopy(m_journals, 0, journals, 0, m_journals.length);
+		journals[m_journals.length] = journal;
+		m_journals = journals;
+		return journal;
+	}
+
+	public void closeJournal(ChangeJournal journal)
+	{
+		for (int i = 0; i < m_journals.length; ++i)
+		{
+			if (m_journals[i] != journal) continue;
+
+			ChangeJournal[] journals = new ChangeJournal[m_journals.length - 1];
+			System.arraycopy(m_journals, 0, journals, 0, i);
+			System.arraycopy(m_journals, i + 1, journals, i,
+			                 journals.length - i);
+			m_journals = journals;
+			return;
+		}
 	}
 	
 	public void randomize()
 	{
-		for (int x = 0; x < m_width; ++x)
-			for (int y = 0; y < m_height; ++y)
-				m_blocks[x][y] = new Block();
+		for (int y = 0; y < m_height; ++y)
+			for (int x = 0; x < m_width; ++x)
+			{
+				int index = m_storage.indexOf(x, y);
+				int mask = WireType.random().getMask();
+				writeCell(index, mask, false, 0);
+			}
 	}
 	
+	/*
+	 * Returns a lightweight view of the block stored at (x, y), or null if the
+	 * cell is empty. Changes made through the view are written straight back
+	 * into the grid. A view is only meaningful while its cell stays occupied,
+	 * and passing it to setBlock copies its current contents rather than
+	 * moving the block.
+	 */
 	public Block getBlock(int x, int y)
 	{
-		return m_blocks[x][y];
+		int index = m_storage.indexOf(x, y);
+		if (!m_storage.isOccupied(index)) return null;
+		return new CellBlock(this, index);
 	}
 	
 	public Block getBlock(Vector2i v)
 	{
-		int x = v.getX();
-		int y = v.getY();
-		return m_blocks[x][y];
+		return getBlock(v.getX(), v.getY());
 	}
 
+	/* Copies the contents of block into (x, y), or empties the cell on null */
 	public void setBlock(int x, int y, Block block)
 	{
-		m_blocks[x][y] = block;
+		int index = m_storage.indexOf(x, y);
+		if (block == null)
+			eraseCell(index);
+		else
+			writeCell(index, block.getWireMask(), block.isFloating(),
+			          paletteIndexOf(block.getColor()));
 	}
 	
 	public void setBlock(Vector2i v, Block block)
 	{
-		int x = v.getX();
-		int y = v.getY();
-		m_blocks[x][y] = block;
+		setBlock(v.getX(), v.getY(), block);
+	}
+
+	/*
+	 * Packed cell indices. The storage assigns every cell an int index; the
+	 * indices stay fixed for the lifetime of the grid and all lie below
+	 * getIndexLimit(), so they can address plain arrays and bitsets. Code
+	 * should not assume any particular layout and should step between cells
+	 * with getNeighbor.
+	 */
+	public int getIndex(int x, int y)
+	{
+		return m_storage.indexOf(x, y);
+	}
+
+	public int getIndex(Vector2i v)
+	{
+		return m_storage.indexOf(v.getX(), v.getY());
+	}
+
+	public int getIndexLimit()
+	{
+		return m_storage.getIndexLimit();
+	}
+
+	public int getX(int index)
+	{
+		return m_storage.getX(index);
+	}
+
+	public int getY(int index)
+	{
+		return m_storage.getY(index);
+	}
+
+	/* Index of the adjacent cell in direction, or -1 past the edge */
+	public int getNeighbor(int index, Direction direction)
+	{
+		Vector2i vel = direction.toVector();
+		int x = m_storage.getX(index) + vel.getX();
+		int y = m_storage.getY(index) + vel.getY();
+		if (x < 0 || y < 0 || x >= m_width || y >= m_height) return -1;
+		return m_storage.indexOf(x, y);
+	}
+
+	public boolean isOccupied(int index)
+	{
+		return m_storage.isOccupied(index);
+	}
+
+	public int getWireMask(int index)
+	{
+		return m_storage.getWireMask(index);
+	}
+
+	public boolean hasWire(int index, Direction direction)
+	{
+		return (m_storage.getWireMask(index) & direction.getMask()) != 0;
+	}
+
+	public boolean isFloating(int index)
+	{
+		return m_storage.isFloating(index);
+	}
+
+	public Color getColor(int index)
+	{
+		return m_palette[m_storage.getColorIndex(index)];
+	}
+
+	/* Only valid for occupied cells */
+	public void setColor(int index, Color color)
+	{
+		checkWritable();
+		writeColorIndex(index, paletteIndexOf(color));
+	}
+
+	public void clearCell(int index)
+	{
+		eraseCell(index);
+	}
+
+	/* Swap the contents of two cells without going through Block views */
+	public void swapCells(int indexA, int indexB)
+	{
+		boolean occupiedA = m_storage.isOccupied(indexA);
+		int maskA = m_storage.getWireMask(indexA);
+		boolean floatingA = m_storage.isFloating(indexA);
+		int colorA = m_storage.getColorIndex(indexA);
+
+		copyCell(indexB, indexA);
+		if (occupiedA)
+			writeCell(indexB, maskA, floatingA, colorA);
+		else
+			eraseCell(indexB);
+	}
+
+	public boolean isOccupied(int x, int y)
+	{
+		return m_storage.isOccupied(m_storage.indexOf(x, y));
+	}
+
+	public boolean isOccupied(Vector2i v)
+	{
+		return isOccupied(v.getX(), v.getY());
+	}
+
+	public int getWireMask(int x, int y)
+	{
+		return m_storage.getWireMask(m_storage.indexOf(x, y));
+	}
+
+	public int getWireMask(Vector2i v)
+	{
+		return getWireMask(v.getX(), v.getY());
+	}
+
+	public boolean hasWire(int x, int y, Direction direction)
+	{
+		return (getWireMask(x, y) & direction.getMask()) != 0;
+	}
+
+	public boolean hasWire(Vector2i v, Direction direction)
+	{
+		return hasWire(v.getX(), v.getY(), direction);
+	}
+
+	public boolean isFloating(int x, int y)
+	{
+		return m_storage.isFloating(m_storage.indexOf(x, y));
+	}
+
+	public boolean isFloating(Vector2i v)
+	{
+		return isFloating(v.getX(), v.getY());
+	}
+
+	public void swapCells(Vector2i a, Vector2i b)
+	{
+		swapCells(getIndex(a), getIndex(b));
 	}
 
 	public int getWidth()
@@ -84,9 +404,261 @@ public class Grid
 		return new Vector2i(m_width, m_height);
 	}
 
+	/*
+	 * Side length of the tiles the storage summarizes occupancy over. Tile
+	 * (tileX, tileY) covers the cells from (tileX, tileY) * getTileSize() up
+	 * to, but not including, the next tile.
+	 */
+	public int getTileSize()
+	{
+		return m_storage.getTileSize();
+	}
+
+	/* Number of occupied cells in a tile; zero means it can be skipped */
+	public int getTileOccupancy(int tileX, int tileY)
+	{
+		return m_storage.getTileOccupancy(tileX, tileY);
+	}
+
+	/*
+	 * Whole-line occupancy queries. These are answered from bitboards kept
+	 * per row and per column, so they cost a few word operations each rather
+	 * than a scan over the cells. A line along gravity is a column when
+	 * gravity is NORTH or SOUTH and a row when it is EAST or WEST.
+	 */
+	public boolean isRowFull(int y)
+	{
+		return lines().isRowFull(y);
+	}
+
+	public boolean isColumnFull(int x)
+	{
+		return lines().isColumnFull(x);
+	}
+
+	public boolean isRowEmpty(int y)
+	{
+		return lines().isRowEmpty(y);
+	}
+
+	public boolean isColumnEmpty(int x)
+	{
+		return lines().isColumnEmpty(x);
+	}
+
+	/*
+	 * How far the blocks of a line reach out from the wall gravity points at.
+	 * Line is the x coordinate for vertical gravity and the y coordinate for
+	 * horizontal gravity.
+	 */
+	public int getStackHeight(int line, Direction gravity)
+	{
+		return lines().getStackHeight(line, gravity);
+	}
+
+	/*
+	 * Number of empty cells directly below (x, y) in the gravity direction.
+	 * A block at (x, y) would land that many cells further along.
+	 */
+	public int getDropDistance(int x, int y, Direction gravity)
+	{
+		return lines().getDropDistance(x, y, gravity);
+	}
+
+	/* Number of blocks stacked solidly against the wall gravity points at */
+	public int getSettledHeight(int line, Direction gravity)
+	{
+		return lines().getSettledHeight(line, gravity);
+	}
+
+	/* True when no block in the line has an empty cell below it */
+	public boolean isSettled(int line, Direction gravity)
+	{
+		return lines().isSettled(line, gravity);
+	}
+
 	public boolean isInBounds(Vector2i loc)
 	{
 		return loc.getX() >= 0 && loc.getY() >= 0 && loc.getX() < m_width
 		       && loc.getY() < m_height;
 	}
+
+	private LineBoards lines()
+	{
+		if (m_lines == null) m_lines = new LineBoards(m_storage);
+		return m_lines;
+	}
+
+	/* Row bitboards of wires for the search code; see PathFinder */
+	WireBoards wireBoards()
+	{
+		if (m_wires == null) m_wires = new WireBoards(m_storage);
+		return m_wires;
+	}
+
+	private void copyCell(int src, int dst)
+	{
+		if (m_storage.isOccupied(src))
+			writeCell(dst, m_storage.getWireMask(src),
+			          m_storage.isFloating(src), m_storage.getColorIndex(src));
+		else
+			eraseCell(dst);
+	}
+
+	/* Every change to the cells goes through one of the methods below */
+
+	private void checkWritable()
+	{
+		if (m_readOnly)
+			throw new UnsupportedOperationException("Grid is read-only");
+	}
+
+	private void writeCell(int index, int wireMask, boolean floating,
+	                       int colorIndex)
+	{
+		checkWritable();
+		boolean changed = !m_storage.isOccupied(index)
+		                  || m_storage.getWireMask(index) != wireMask
+		                  || m_storage.isFloating(index) != floating;
+		long oldKey = m_hashed? keyOf(index) : 0;
+		m_storage.setCell(index, wireMask, floating, colorIndex);
+		if (changed) recordChange(index, oldKey);
+	}
+
+	private void eraseCell(int index)
+	{
+		checkWritable();
+		if (!m_storage.isOccupied(index)) return;
+		long oldKey = m_hashed? keyOf(index) : 0;
+		m_storage.clearCell(index);
+		recordChange(index, oldKey);
+	}
+
+	private void writeWireMask(int index, int wireMask)
+	{
+		checkWritable();
+		if (m_storage.getWireMask(index) == wireMask) return;
+		long oldKey = m_hashed? keyOf(index) : 0;
+		m_storage.setWireMask(index, wireMask);
+		recordChange(index, oldKey);
+	}
+
+	private void writeFloating(int index, boolean floating)
+	{
+		checkWritable();
+		if (m_storage.isFloating(index) == floating) return;
+		long oldKey = m_hashed? keyOf(index) : 0;
+		m_storage.setFloating(index, floating);
+		recordChange(index, oldKey);
+	}
+
+	private void writeColorIndex(int index, int colorIndex)
+	{
+		checkWritable();
+		m_storage.setColorIndex(index, colorIndex);
+	}
+
+	/* oldKey is the hash key the cell had before the write */
+	private void recordChange(int index, long oldKey)
+	{
+		if (m_lines != null || m_wires != null)
+		{
+			int x = m_storage.getX(index);
+			int y = m_storage.getY(index);
+			if (m_lines != null) m_lines.set(x, y, m_storage.isOccupied(index));
+			if (m_wires != null)
+				m_wires.set(x, y, m_storage.getWireMask(index));
+		}
+
+		if (m_hashed) m_hash ^= oldKey ^ keyOf(index);
+		m_generation++;
+		ChangeJournal[] journals = m_journals;
+		for (int i = 0; i < journals.length; ++i)
+			journals[i].markDirty(index);
+	}
+
+	/*
+	 * The Zobrist key of a cell in its current state, or zero when it is
+	 * empty. Rather than filling a table of random numbers, the keys are
+	 * drawn by running the SplitMix64 finalizer over a counter made from the
+	 * seed, the cell position and its 32 possible states.
+	 */
+	private long keyOf(int index)
+	{
+		if (!m_storage.isOccupied(index)) return 0;
+
+		long x = m_storage.getX(index);
+		long y = m_storage.getY(index);
+		long state = m_storage.getWireMask(index)
+		             | (m_storage.isFloating(index)? 16 : 0);
+		long z = HASH_SEED + ((y << 37 | x << 5 | state) + 1)
+		                     * 0x9e3779b97f4a7c15L;
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	private int paletteIndexOf(Color color)
+	{
+		for (int i = 0; i < m_palette.length; ++i)
+			if (m_palette[i].equals(color)) return i;
+		if (m_palette.length >= MAX_PALETTE_SIZE)
+			throw new IllegalStateException("Grid palette is full");
+
+		Color[] palette = new Color[m_palette.length + 1];
+		System.arraycopy(m_palette, 0, palette, 0, m_palette.length);
+		palette[m_palette.length] = color;
+		m_palette = palette;
+		return m_palette.length - 1;
+	}
+
+	/* Block view onto a single occupied cell of the grid */
+	private static final class CellBlock extends Block
+	{
+		private final Grid m_grid;
+		private final int  m_index;
+
+		public CellBlock(Grid grid, int index)
+		{
+			super(WireType.of(0));
+			m_grid = grid;
+			m_index = index;
+		}
+
+		@Override
+		public WireType getWireType()
+		{
+			return WireType.of(m_grid.m_storage.getWireMask(m_index));
+		}
+
+		@Override
+		public void setWireType(WireType type)
+		{
+			m_grid.writeWireMask(m_index, type.getMask());
+		}
+
+		@Override
+		public boolean isFloating()
+		{
+			return m_grid.m_storage.isFloating(m_index);
+		}
+
+		@Override
+		public void setFloating(boolean val)
+		{
+			m_grid.writeFloating(m_index, val);
+		}
+
+		@Override
+		public Color getColor()
+		{
+			return m_grid.getColor(m_index);
+		}
+
+		@Override
+		public void setColor(Color color)
+		{
+			m_grid.setColor(m_index, color);
+		}
+	}
 }
@@ -0,0 +1,254 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ramona Seay
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+
+package wireblocks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * Binary board files. All values are little-endian:
+ *
+ *   int    magic, "WBGF"
+ *   int    format version
+ *   int    width
+ *   int    height
+ *   int    number of occupied cells
+ *   int    reserved, zero
+ *   nibble wire mask of every cell, two cells per byte, low nibble first
+ *   bits   occupied flag of every cell
+ *   bits   floating flag of every cell
+ *
+ * Cells are stored row by row, and every section starts on an eight byte
+ * boundary. Bitsets are stored as whole longs with cell i in bit i % 64 of
+ * long i / 64. Colors are not saved.
+ *
+ * This is exactly the layout of OffHeapGridStorage, so load() only has to map
+ * the file: opening a board takes the same time whatever its size, and the
+ * operating system shares the pages between every process that maps it.
+ */
+public class GridFile
+{
+	public static final int MAGIC   = 0x46474257;
+	public static final int VERSION = 1;
+
+	private static final int HEADER_BYTES = 24;
+	private static final int CHUNK_BYTES  = 1 << 16;
+
+	private GridFile()
+	{
+	}
+
+	public static void save(Grid grid, File file) throws IOException
+	{
+		int width = grid.getWidth();
+		int height = grid.getHeight();
+		int numCells = width * height;
+		int count = 0;
+		for (int y = 0; y < height; ++y)
+			for (int x = 0; x < width; ++x)
+				if (grid.isOccupied(x, y)) count++;
+
+		try (RandomAccessFile out = new RandomAccessFile(file, "rw"))
+		{
+			FileChannel channel = out.getChannel();
+			channel.truncate(0);
+
+			ByteBuffer buffer = ByteBuffer.allocate(CHUNK_BYTES)
+			        .order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putInt(MAGIC);
+			buffer.putInt(VERSION);
+			buffer.putInt(width);
+			buffer.putInt(height);
+			buffer.putInt(count);
+			buffer.putInt(0);
+
+			/* Wire masks */
+			for (int i = 0; i < numCells; i += 2)
+			{
+				int lo = cellMask(grid, i);
+				int hi = i + 1 < numCells? cellMask(grid, i + 1) : 0;
+				buffer.put((byte)(lo | (hi << 4)));
+				if (!buffer.hasRemaining()) flush(channel, buffer);
+			}
+			pad(channel, buffer, OffHeapGridStorage.nibbleBytes(numCells));
+
+			/* Occupied and floating flags */
+			for (int pass = 0; pass < 2; ++pass)
+			{
+				for (int i = 0; i < numCells; i += 64)
+				{
+					long word = 0;
+					int end = Math.min(numCells, i + 64);
+					for (int j = i; j < end; ++j)
+					{
+						int x = j % width;
+						int y = j / width;
+						boolean bit = pass == 0? grid.isOccupied(x, y)
+						                       : grid.isFloating(x, y);
+						if (bit) word |= 1L << j;
+					}
+					buffer.putLong(word);
+					if (!buffer.hasRemaining()) flush(channel, buffer);
+				}
+			}
+			flush(channel, buffer);
+		}
+	}
+
+	/*
+	 * Maps a board file into a read-only grid. Only the occupied flags are
+	 * read up front, to check the header's count against them; the rest of
+	 * the cells are paged in as they are touched. Close the grid to unmap
+	 * the file.
+	 */
+	public static Grid load(File file) throws IOException
+	{
+		try (RandomAccessFile in = new RandomAccessFile(file, "r"))
+		{
+			FileChannel channel = in.getChannel();
+			long size = channel.size();
+			if (size < HEADER_BYTES)
+				throw new IOException(file + " is not a grid file");
+			if (size > Integer.MAX_VALUE)
+				throw new IOException(file + " is too large to map");
+
+			MappedByteBuffer mapping = channel
+			        .map(FileChannel.MapMode.READ_ONLY, 0, size);
+			mapping.order(ByteOrder.LITTLE_ENDIAN);
+			try
+			{
+				return new Grid(mapStorage(file, mapping), true);
+			}
+			catch (IOException e)
+			{
+				DirectMemory.free(mapping);
+				throw e;
+			}
+		}
+	}
+
+	/* Reads a board file into an ordinary, writable grid */
+	public static Grid read(File file) throws IOException
+	{
+		try (Grid mapped = load(file))
+		{
+			Grid grid = new Grid(new PackedGridStorage(mapped.getWidth(),
+			                                           mapped.getHeight()));
+			for (int y = 0; y < grid.getHeight(); ++y)
+				for (int x = 0; x < grid.getWidth(); ++x)
+					if (mapped.isOccupied(x, y))
+					{
+						Block block = new Block(mapped.getWireMask(x, y));
+						block.setFloating(mapped.isFloating(x, y));
+						grid.setBlock(x, y, block);
+					}
+			return grid;
+		}
+	}
+
+	private static OffHeapGridStorage mapStorage(File file, ByteBuffer mapping)
+	        throws IOException
+	{
+		if (mapping.getInt(0) != MAGIC)
+			throw new IOException(file + " is not a grid file");
+		if (mapping.getInt(4) != VERSION)
+			throw new IOException(file + " has unsupported version "
+			                      + mapping.getInt(4));
+
+		int width = mapping.getInt(8);
+		int height = mapping.getInt(12);
+		int count = mapping.getInt(16);
+		if (width < 0 || height < 0
+		    || (long)width * height > Integer.MAX_VALUE)
+			throw new IOException(file + " has bad dimensions");
+
+		int numCells = width * height;
+		long masksOffset = HEADER_BYTES;
+		long occupiedOffset = masksOffset
+		                      + align(OffHeapGridStorage.nibbleBytes(numCells));
+		long floatingOffset = occupiedOffset
+		                      + OffHeapGridStorage.bitsetBytes(numCells);
+		long end = floatingOffset + OffHeapGridStorage.bitsetBytes(numCells);
+		if (end != mapping.capacity())
+			throw new IOException(file + " is truncated or corrupt");
+
+		/* Physics and painting skip tiles by this count, so it must be right */
+		if (countBits(mapping, (int)occupiedOffset, numCells) != count)
+			throw new IOException(file + " has a bad occupied cell count");
+
+		return new OffHeapGridStorage(width, height, count, mapping,
+		                              (int)masksOffset, (int)occupiedOffset,
+		                              (int)floatingOffset);
+	}
+
+	/* Number of bits set among the first numBits of the bitset at offset */
+	private static long countBits(ByteBuffer mapping, int offset,
+	                              int numBits)
+	{
+		long count = 0;
+		for (int i = 0; i < numBits; i += 64)
+		{
+			long word = mapping.getLong(offset + (i >>> 3));
+			if (numBits - i < 64) word &= (1L << (numBits - i)) - 1;
+			count += Long.bitCount(word);
+		}
+		return count;
+	}
+
+	private static int cellMask(Grid grid, int i)
+	{
+		int width = grid.getWidth();
+		return grid.getWireMask(i % width, i / width);
+	}
+
+	/* Round up to a multiple of eight */
+	private static long align(long bytes)
+	{
+		return (bytes + 7) & ~7L;
+	}
+
+	/* Zero-fills a section of the given length up to the next boundary */
+	private static void pad(FileChannel channel, ByteBuffer buffer,
+	                        long length) throws IOException
+	{
+		for (long i = length; i < align(length); ++i)
+		{
+			buffer.put((byte)0);
+			if (!buffer.hasRemaining()) flush(channel, buffer);
+		}
+	}
+
+	private static void flush(FileChannel channel, ByteBuffer buffer)
+	        throws IOException
+	{
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+}
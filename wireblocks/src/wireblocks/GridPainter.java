@@ -25,7 +25,6 @@ package wireblocks;
 import java.awt.Color;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 
 import wireblocks.dlx.DLXSolver;
 import wireblocks.dlx.LinkNode;
@@ -44,11 +43,15 @@ public class GridPainter
 	int                          m_numColors;
 	int[]                        m_colors;
 
+	/* Grid generation the current colors were painted for, or -1 */
+	long                         m_paintedGeneration;
+
 	public GridPainter(Grid grid)
 	{
 		m_grid = grid;
 		m_graphBuilder = new GraphBuilder(m_grid);
 		m_numColors = 4;
+		m_paintedGeneration = -1;
 		shuffleColors();
 		System.out.print("m_colors:");
 		for (int i = 0; i < m_numColors; ++i)
@@ -59,21 +62,28 @@ public class GridPainter
 	public void shuffleColors()
 	{
 		m_colors = RandomUtils.createShuffledArray(m_numColors);
+		m_paintedGeneration = -1;
 	}
 	
 	public void clearGrid()
 	{
+		m_paintedGeneration = -1;
 		for (int x = 0; x < m_grid.getWidth(); ++x)
 			for (int y = 0; y < m_grid.getHeight(); ++y)
 			{
-				Block block = m_grid.getBlock(x, y);
-				if (block == null) continue;
-				block.setColor(Block.NO_COLOR);
+				int cell = m_grid.getIndex(x, y);
+				if (!m_grid.isOccupied(cell)) continue;
+				m_grid.setColor(cell, Block.NO_COLOR);
 			}
 	}
 	
+	/* Does nothing if the board has not changed since it was last painted */
 	public void paintGrid()
 	{
+		long generation = m_grid.getGeneration();
+		if (generation == m_paintedGeneration) return;
+		m_paintedGeneration = generation;
+
 		m_graph = m_graphBuilder.buildGraph();
 
 		System.out.println(m_graphBuilder);
@@ -207,15 +217,12 @@ public class GridPainter
 
 	private void paintCells(GraphBuilder builder, int[] colors)
 	{
-		Map<Integer, Integer> regionMap = builder.getRegions();
-
 		for (int x = 0; x < m_grid.getWidth(); ++x)
 			for (int y = 0; y < m_grid.getHeight(); ++y)
 			{
-				Vector2i cell = new Vector2i(x, y);
-				if (m_grid.getBlock(cell) == null) continue;
-				int index = builder.indexOf(cell);
-				int region = regionMap.get(index);
+				int cell = m_grid.getIndex(x, y);
+				if (!m_grid.isOccupied(cell)) continue;
+				int region = builder.getRegionOfCell(cell);
 				int color = colors[region];
 				Color dstColor = GridPainter.PALETTE[color];
 				paintPolyomino(builder, cell, region, dstColor);
@@ -227,27 +234,22 @@ public class GridPainter
 	}
 
 	/* DFS paint can filling algorithm */
-	private void paintPolyomino(GraphBuilder builder, Vector2i root,
-	                            int region, Color dstColor)
+	private void paintPolyomino(GraphBuilder builder, int root, int region,
+	                            Color dstColor)
 	{
-		Block block = m_grid.getBlock(root);
-		if (block == null) return;
+		if (!m_grid.isOccupied(root)) return;
 		
-		int index = builder.indexOf(root);
-		Map<Integer, Integer> regionMap = builder.getRegions();
-		if (regionMap.get(index) != region) return;
+		if (builder.getRegionOfCell(root) != region) return;
 
-		if (block.getColor() == dstColor) return;
-		block.setColor(dstColor);
+		if (m_grid.getColor(root) == dstColor) return;
+		m_grid.setColor(root, dstColor);
 
 		for (Direction direction : Direction.toArray())
 		{
-			Vector2i vel = direction.toVector();
-			Vector2i newLoc = root.add(vel);
-
-			if (!m_grid.isInBounds(newLoc)) continue;
+			int newCell = m_grid.getNeighbor(root, direction);
+			if (newCell < 0) continue;
 
-			paintPolyomino(builder, newLoc, region, dstColor);
+			paintPolyomino(builder, newCell, region, dstColor);
 		}
 	}
 }
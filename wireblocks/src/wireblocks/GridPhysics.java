@@ -22,43 +22,155 @@
 
 package wireblocks;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class GridPhysics
 {
-	private Direction m_gravity;
+	private Direction     m_gravity;
+
+	/*
+	 * Lines that may still have something to move. A line goes to sleep
+	 * after an update in which it did not change, and is woken again through
+	 * the journal kept on the grid being updated, or by a gravity change.
+	 */
+	private Grid          m_grid;
+	private ChangeJournal m_journal;
+	private long[]        m_activeLines;
+	private boolean       m_wakeAll;
+	private int[]         m_changed;
 
 	public GridPhysics(Direction direction)
 	{
 		m_gravity = direction;
+		m_grid = null;
+		m_journal = null;
+		m_activeLines = new long[0];
+		m_wakeAll = true;
+		m_changed = new int[256];
 	}
 	
 	public void reverseGravity()
 	{
 		m_gravity = m_gravity.reverse();
+		m_wakeAll = true;
+	}
+
+	/*
+	 * Stops following changes to the last grid passed to update. The physics
+	 * keeps a journal open on that grid until this is called or another grid
+	 * is updated.
+	 */
+	public void detach()
+	{
+		if (m_grid != null) m_grid.closeJournal(m_journal);
+		m_grid = null;
+		m_journal = null;
 	}
 
 	public boolean update(Grid grid)
 	{
 		Vector2i gravity = getGravityVector();
-		
-		int xLower = gravity.getX() < 0? 0 : grid.getWidth();
-		int xUpper = gravity.getX() < 0? grid.getWidth() : -1;
-		int xDelta = gravity.getX() < 0? 1 : -1;
-		
-		int yLower = gravity.getY() < 0? 0 : grid.getHeight();
-		int yUpper = gravity.getY() < 0? grid.getHeight() : -1;
-		int yDelta = gravity.getY() < 0? 1 : -1;
-		
+		int width = grid.getWidth();
+		int height = grid.getHeight();
+		int tileSize = grid.getTileSize();
+
+		/*
+		 * Blocks only ever move along their own line, so the lines can be
+		 * handled one at a time. Each line is walked starting from the wall
+		 * gravity points at.
+		 */
+		boolean vertical = gravity.getX() == 0;
+		int numLines = vertical? width : height;
+		int length = vertical? height : width;
+		int forward = vertical? gravity.getY() : gravity.getX();
+		int posStart = forward < 0? 0 : length - 1;
+		int posDelta = forward < 0? 1 : -1;
+
+		/*
+		 * Only lines that changed since their last update are visited. Moves
+		 * made here go through the journal too, so a line stays awake for as
+		 * long as something in it keeps falling.
+		 */
+		wakeChangedLines(grid, vertical, numLines);
 		boolean updated = false;
-		for (int x = xLower; x != xUpper; x += xDelta)
-			for (int y = yLower; y != yUpper; y += yDelta)
+		for (int line = nextActiveLine(0); line >= 0;
+		     line = nextActiveLine(line + 1))
+		{
+			m_activeLines[line >>> 6] &= ~(1L << line);
+
+			/* Nothing can fall in a line that is already one solid stack */
+			if (grid.isSettled(line, m_gravity)) continue;
+
+			/* Nor in the solid part at the bottom of the line */
+			int base = grid.getSettledHeight(line, m_gravity);
+			for (int pos = posStart + base * posDelta; pos >= 0 && pos < length;
+			     pos += posDelta)
 			{
-				boolean result = updateCell(grid, new Vector2i(x, y));
+				int x = vertical? line : pos;
+				int y = vertical? pos : line;
+
+				/* Jump straight past the rest of an empty tile */
+				int tile = pos / tileSize;
+				if (grid.getTileOccupancy(x / tileSize, y / tileSize) == 0)
+				{
+					if (posDelta > 0)
+						pos = (tile + 1) * tileSize - 1;
+					else
+						pos = tile * tileSize;
+					continue;
+				}
+
+				boolean result = updateCell(grid, grid.getIndex(x, y));
 				if (result) updated = true;
 			}
-		
+		}
+
 		return updated;
 	}
 
+	/*
+	 * Drops every block as far as it would go if update were called until it
+	 * returned false, in a single pass over the board. Floating blocks stay
+	 * where they are and hold up whatever lies above them. Returns the moves
+	 * made, line by line starting from the wall gravity points at, or an
+	 * empty list if the board was already settled.
+	 */
+	public List<BlockMove> settle(Grid grid)
+	{
+		boolean vertical = getGravityVector().getX() == 0;
+		int numLines = vertical? grid.getWidth() : grid.getHeight();
+		int length = vertical? grid.getHeight() : grid.getWidth();
+
+		List<BlockMove> moves = new ArrayList<BlockMove>();
+		for (int line = 0; line < numLines; ++line)
+		{
+			if (grid.isSettled(line, m_gravity)) continue;
+
+			/* Blocks pack down against the wall or the next floating block */
+			int landing = 0;
+			for (int depth = 0; depth < length; ++depth)
+			{
+				int cell = getLineCell(grid, line, depth);
+				if (!grid.isOccupied(cell)) continue;
+				if (grid.isFloating(cell))
+				{
+					landing = depth + 1;
+					continue;
+				}
+
+				if (landing != depth)
+				{
+					int newCell = getLineCell(grid, line, landing);
+					moveBlock(grid, cell, newCell);
+					moves.add(new BlockMove(cell, newCell, depth - landing));
+				}
+				landing++;
+			}
+		}
+		return moves;
+	}
+
 	public Direction getGravity()
 	{
 		return m_gravity;
@@ -69,37 +181,97 @@ public class GridPhysics
 		return m_gravity.toVector();
 	}
 	
+	private void wakeChangedLines(Grid grid, boolean vertical, int numLines)
+	{
+		if (grid != m_grid)
+		{
+			detach();
+			m_grid = grid;
+			m_journal = grid.openJournal();
+			int maxLines = Math.max(grid.getWidth(), grid.getHeight());
+			m_activeLines = new long[(maxLines + 63) >>> 6];
+			m_wakeAll = true;
+		}
+
+		if (m_wakeAll)
+		{
+			/* Also a good moment to lay the lines out along the new axis */
+			grid.alignTo(m_gravity);
+			m_journal.clear();
+			for (int line = 0; line < numLines; ++line)
+				m_activeLines[line >>> 6] |= 1L << line;
+			m_wakeAll = false;
+			return;
+		}
+
+		int count;
+		while ((count = m_journal.drain(m_changed)) > 0)
+			for (int i = 0; i < count; ++i)
+			{
+				int cell = m_changed[i];
+				int line = vertical? grid.getX(cell) : grid.getY(cell);
+				m_activeLines[line >>> 6] |= 1L << line;
+			}
+	}
+
+	/* First active line at or after line, or -1 if there is none */
+	private int nextActiveLine(int line)
+	{
+		int word = line >>> 6;
+		if (word >= m_activeLines.length) return -1;
+
+		long bits = m_activeLines[word] & (-1L << line);
+		while (bits == 0)
+		{
+			if (++word >= m_activeLines.length) return -1;
+			bits = m_activeLines[word];
+		}
+		return (word << 6) | Long.numberOfTrailingZeros(bits);
+	}
+
+	/*
+	 * The cell of a line that lies depth cells away from the wall gravity
+	 * points at. Lines are columns under north or south gravity and rows
+	 * otherwise.
+	 */
+	int getLineCell(Grid grid, int line, int depth)
+	{
+		switch (m_gravity)
+		{
+			case NORTH:
+				return grid.getIndex(line, depth);
+			case SOUTH:
+				return grid.getIndex(line, grid.getHeight() - 1 - depth);
+			case WEST:
+				return grid.getIndex(depth, line);
+			case EAST:
+			default:
+				return grid.getIndex(grid.getWidth() - 1 - depth, line);
+		}
+	}
+
 	/*
 	 * Recursive depth-first search of cell updating. Return value indicates
 	 * whether we have successfully moved the block or not.
 	 */
-	private boolean updateCell(Grid grid, Vector2i cell)
+	private boolean updateCell(Grid grid, int cell)
 	{
-		/* Check if we're still in bounds first */
-		if (!grid.isInBounds(cell)) return false;
-		
-		/* Get the block to update */
-		Block block = grid.getBlock(cell);
-		
 		/* If there's nothing there, go back */
-		if (block == null) return false;
+		if (!grid.isOccupied(cell)) return false;
 		
 		/* If the block is floating, go back */
-		if (block.isFloating()) return false;
+		if (grid.isFloating(cell)) return false;
 		
 		/* Compute the cell to move into */
-		Vector2i newLoc = cell.add(getGravityVector());
+		int newCell = grid.getNeighbor(cell, m_gravity);
 		
 		/* If we're at the edge of the grid, go back */
-		if (!grid.isInBounds(newLoc)) return false;
-
-		/* Find out if there's anything in that space */
-		Block newBlock = grid.getBlock(newLoc);
+		if (newCell < 0) return false;
 
 		/* If the space is empty, move in */
-		if (newBlock == null)
+		if (!grid.isOccupied(newCell))
 		{
-			moveBlock(grid, cell, newLoc);
+			moveBlock(grid, cell, newCell);
 			return true;
 		}
 
@@ -107,17 +279,14 @@ public class GridPhysics
 		 * There's another block in the way. Recursively fall and return the
 		 * success status
 		 */
-		boolean success = updateCell(grid, newLoc);
-		if (success) moveBlock(grid, cell, newLoc);
+		boolean success = updateCell(grid, newCell);
+		if (success) moveBlock(grid, cell, newCell);
 		return success;
 	}
 	
 	/* Swap the contents of two grid cells */
-	private void moveBlock(Grid grid, Vector2i src, Vector2i dst)
+	private void moveBlock(Grid grid, int src, int dst)
 	{
-		Block a = grid.getBlock(src);
-		Block b = grid.getBlock(dst);
-		grid.setBlock(src, b);
-		grid.setBlock(dst, a);
+		grid.swapCells(src, dst);
 	}
 }
@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ramona Seay
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+
+package wireblocks;
+
+/*
+ * Backing store for the cells of a Grid. Cells are addressed by an index
+ * chosen by the storage itself (see indexOf), and each occupied cell holds a
+ * wire mask, a floating flag and an index into the owning grid's palette.
+ * Unoccupied cells read back as a zero mask, not floating, color index zero.
+ */
+public interface GridStorage extends AutoCloseable
+{
+	public abstract int getWidth();
+
+	public abstract int getHeight();
+
+	public abstract int indexOf(int x, int y);
+
+	/* Inverse of indexOf */
+	public abstract int getX(int index);
+
+	public abstract int getY(int index);
+
+	/* Every index returned by indexOf is below this bound */
+	public abstract int getIndexLimit();
+
+	/*
+	 * Occupancy summary: the board is covered by square tiles of getTileSize()
+	 * cells per side, and getTileOccupancy reports how many cells of a tile
+	 * are occupied so that scans can skip empty tiles outright.
+	 */
+	public abstract int getTileSize();
+
+	public abstract int getTileOccupancy(int tileX, int tileY);
+
+	/*
+	 * Returns a storage holding the current contents, in time independent of
+	 * the board size. Both storages share their data and copy only the parts
+	 * they later write to, so neither sees the other's changes. Storages that
+	 * cannot do this throw UnsupportedOperationException.
+	 */
+	public abstract GridStorage snapshot();
+
+	/*
+	 * Hint that the board will mostly be walked along columns rather than
+	 * rows, or the other way around when false. A storage may rearrange its
+	 * memory to suit; cell indices and contents stay as they are.
+	 */
+	public abstract void setColumnMajor(boolean columnMajor);
+
+	/* Releases any memory held outside the Java heap */
+	@Override
+	public abstract void close();
+
+	public abstract boolean isOccupied(int index);
+
+	public abstract int getWireMask(int index);
+
+	public abstract boolean isFloating(int index);
+
+	public abstract int getColorIndex(int index);
+
+	public abstract void setCell(int index, int wireMask, boolean floating,
+	                             int colorIndex);
+
+	public abstract void clearCell(int index);
+
+	public abstract void setWireMask(int index, int wireMask);
+
+	public abstract void setFloating(int index, boolean floating);
+
+	public abstract void setColorIndex(int index, int colorIndex);
+}
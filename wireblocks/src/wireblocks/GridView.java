@@ -22,11 +22,14 @@
 
 package wireblocks;
 
+import java.awt.Color;
 import java.awt.Dimension;
+import java.awt.FontMetrics;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
+import java.util.Queue;
 
 import javax.swing.JPanel;
 
@@ -37,12 +40,21 @@ public class GridView extends JPanel implements MouseListener
 	private Grid              m_grid;
 	private BlockView         m_blockView;
 
-	public GridView(Grid grid)
+	/* Edits from clicks, run by the game thread that owns the grid */
+	private Queue<Runnable>   m_input;
+
+	/* What paint draws; written by the game thread, read on the EDT */
+	private volatile Grid     m_snapshot;
+	private volatile boolean  m_gameOver;
+
+	public GridView(Grid grid, Queue<Runnable> input)
 	{
 		this.addMouseListener(this);
 		
 		m_grid = grid;
+		m_input = input;
 		m_blockView = new FancyBlockView();
+		m_snapshot = grid.snapshot();
 		
 		Vector2i blockDims = m_blockView.getDims();
 		Vector2i gridDims = m_grid.getDims();
@@ -50,20 +62,75 @@ public class GridView extends JPanel implements MouseListener
 		setPreferredSize(panelDims);
 	}
 
+	/*
+	 * Captures the current state of the grid for the next paint. Call this
+	 * from the thread that updates the grid; paint never reads the live grid,
+	 * so it cannot see a half-applied update.
+	 */
+	public void takeSnapshot()
+	{
+		m_snapshot = m_grid.snapshot();
+	}
+
+	/* Writes "Game over" across the board from the next paint on */
+	public void showGameOver()
+	{
+		m_gameOver = true;
+	}
+
 	@Override
 	public void paint(Graphics g)
 	{
 		super.paint(g);
 		Graphics2D g2d = (Graphics2D)g;
+		Grid grid = m_snapshot;
 		
-		Vector2i borderDims = m_grid.getDims().scale(m_blockView.getDims());
+		Vector2i borderDims = grid.getDims().scale(m_blockView.getDims());
 		g2d.drawRect(0, 0, borderDims.getX(), borderDims.getY());
 
+		/* Only visit the tiles that have something in them */
+		int tileSize = grid.getTileSize();
+		int width = grid.getWidth();
+		int height = grid.getHeight();
+		for (int tileX = 0; tileX * tileSize < width; ++tileX)
+			for (int tileY = 0; tileY * tileSize < height; ++tileY)
+			{
+				if (grid.getTileOccupancy(tileX, tileY) == 0) continue;
+				int xBegin = tileX * tileSize;
+				int yBegin = tileY * tileSize;
+				int xEnd = Math.min(width, xBegin + tileSize);
+				int yEnd = Math.min(height, yBegin + tileSize);
+				paintTile(g2d, grid, xBegin, yBegin, xEnd, yEnd);
+			}
+
+		if (m_gameOver) paintGameOver(g2d, borderDims);
+	}
+
+	/* Centers the message on a band across the middle of the board */
+	private void paintGameOver(Graphics2D g2d, Vector2i borderDims)
+	{
+		String message = "Game over";
+		FontMetrics metrics = g2d.getFontMetrics();
+		int bandHeight = 2 * metrics.getHeight();
+		int bandY = (borderDims.getY() - bandHeight) / 2;
+		g2d.setColor(Color.BLACK);
+		g2d.fillRect(0, bandY, borderDims.getX(), bandHeight);
+
+		int textX = (borderDims.getX() - metrics.stringWidth(message)) / 2;
+		int textY = bandY + (bandHeight - metrics.getHeight()) / 2
+		            + metrics.getAscent();
+		g2d.setColor(Color.WHITE);
+		g2d.drawString(message, textX, textY);
+	}
+
+	private void paintTile(Graphics2D g2d, Grid grid, int xBegin, int yBegin,
+	                       int xEnd, int yEnd)
+	{
 		Vector2i blockDims = m_blockView.getDims();
-		for (int x = 0; x < m_grid.getWidth(); ++x)
-			for (int y = 0; y < m_grid.getHeight(); ++y)
+		for (int x = xBegin; x < xEnd; ++x)
+			for (int y = yBegin; y < yEnd; ++y)
 			{
-				Block block = m_grid.getBlock(x, y);
+				Block block = grid.getBlock(x, y);
 				if (block == null) continue;
 				Vector2i corner = new Vector2i(x, y).scale(blockDims);
 				m_blockView.display(g2d, block, corner);
@@ -76,15 +143,21 @@ public class GridView extends JPanel implements MouseListener
 		Vector2i mouseLoc = new Vector2i(e.getX(), e.getY());
 		Vector2i blockCell = getBlockCoordFromCoord(mouseLoc);
 		if (!m_grid.isInBounds(blockCell)) return;
-		Block block = m_grid.getBlock(blockCell.getX(), blockCell.getY());
+		int button = e.getButton();
+		m_input.add(() -> editCell(blockCell, button));
+	}
+
+	/* Adds a block to an empty cell, or turns the one that is there */
+	private void editCell(Vector2i cell, int button)
+	{
+		Block block = m_grid.getBlock(cell.getX(), cell.getY());
 		if (block == null)
 		{
 			block = new Block();
-			m_grid.setBlock(blockCell.getX(), blockCell.getY(), block);
+			m_grid.setBlock(cell.getX(), cell.getY(), block);
 			return;
 		}
 
-		int button = e.getButton();
 		if (button == MouseEvent.BUTTON1) block.rotate(Rotation.LEFT);
 		if (button == MouseEvent.BUTTON3) block.rotate(Rotation.RIGHT);
 	}
@@ -0,0 +1,252 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ramona Seay
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+
+package wireblocks;
+
+/*
+ * Occupancy bitboards for every row and every column of a grid. Row y has bit
+ * x set when (x, y) is occupied and column x has bit y set, so questions about
+ * whole lines come down to a handful of word operations. Lines that run along
+ * the gravity direction are columns for NORTH and SOUTH and rows for EAST and
+ * WEST; positions along a line are measured in board coordinates.
+ */
+class LineBoards
+{
+	private final int    m_width;
+	private final int    m_height;
+	private final int    m_rowWords;
+	private final int    m_columnWords;
+	private final long[] m_rows;
+	private final long[] m_columns;
+
+	public LineBoards(GridStorage storage)
+	{
+		m_width = storage.getWidth();
+		m_height = storage.getHeight();
+		m_rowWords = (m_width + 63) >>> 6;
+		m_columnWords = (m_height + 63) >>> 6;
+		m_rows = new long[m_height * m_rowWords];
+		m_columns = new long[m_width * m_columnWords];
+
+		for (int y = 0; y < m_height; ++y)
+			for (int x = 0; x < m_width; ++x)
+				if (storage.isOccupied(storage.indexOf(x, y)))
+					set(x, y, true);
+	}
+
+	public void set(int x, int y, boolean occupied)
+	{
+		int row = y * m_rowWords + (x >>> 6);
+		int column = x * m_columnWords + (y >>> 6);
+		if (occupied)
+		{
+			m_rows[row] |= 1L << x;
+			m_columns[column] |= 1L << y;
+		}
+		else
+		{
+			m_rows[row] &= ~(1L << x);
+			m_columns[column] &= ~(1L << y);
+		}
+	}
+
+	public boolean isRowFull(int y)
+	{
+		return isFull(m_rows, y * m_rowWords, m_width);
+	}
+
+	public boolean isColumnFull(int x)
+	{
+		return isFull(m_columns, x * m_columnWords, m_height);
+	}
+
+	public boolean isRowEmpty(int y)
+	{
+		return count(m_rows, y * m_rowWords, m_rowWords) == 0;
+	}
+
+	public boolean isColumnEmpty(int x)
+	{
+		return count(m_columns, x * m_columnWords, m_columnWords) == 0;
+	}
+
+	/*
+	 * Distance from the wall gravity points at to the farthest occupied cell
+	 * of the line, or zero for an empty line.
+	 */
+	public int getStackHeight(int line, Direction gravity)
+	{
+		long[] bits = isVertical(gravity)? m_columns : m_rows;
+		int words = isVertical(gravity)? m_columnWords : m_rowWords;
+		int length = isVertical(gravity)? m_height : m_width;
+		int base = line * words;
+
+		if (isForward(gravity))
+			return length - nextSetBit(bits, base, 0, length);
+		else
+			return previousSetBit(bits, base, length - 1) + 1;
+	}
+
+	/*
+	 * Length of the unbroken run of occupied cells against the wall gravity
+	 * points at. Nothing in that run can fall.
+	 */
+	public int getSettledHeight(int line, Direction gravity)
+	{
+		long[] bits = isVertical(gravity)? m_columns : m_rows;
+		int words = isVertical(gravity)? m_columnWords : m_rowWords;
+		int length = isVertical(gravity)? m_height : m_width;
+		int base = line * words;
+
+		if (isForward(gravity))
+			return length - 1 - previousClearBit(bits, base, length - 1);
+		else
+			return nextClearBit(bits, base, 0, length);
+	}
+
+	/* Number of free cells between (x, y) and the next obstacle below it */
+	public int getDropDistance(int x, int y, Direction gravity)
+	{
+		long[] bits = isVertical(gravity)? m_columns : m_rows;
+		int words = isVertical(gravity)? m_columnWords : m_rowWords;
+		int length = isVertical(gravity)? m_height : m_width;
+		int base = (isVertical(gravity)? x : y) * words;
+		int pos = isVertical(gravity)? y : x;
+
+		if (isForward(gravity))
+			return nextSetBit(bits, base, pos + 1, length) - pos - 1;
+		else
+			return pos - previousSetBit(bits, base, pos - 1) - 1;
+	}
+
+	/*
+	 * True when the occupied cells of the line form one unbroken stack
+	 * against the wall, so that nothing in the line has room to fall.
+	 */
+	public boolean isSettled(int line, Direction gravity)
+	{
+		long[] bits = isVertical(gravity)? m_columns : m_rows;
+		int words = isVertical(gravity)? m_columnWords : m_rowWords;
+		return count(bits, line * words, words)
+		       == getStackHeight(line, gravity);
+	}
+
+	private static boolean isVertical(Direction gravity)
+	{
+		return gravity.toVector().getX() == 0;
+	}
+
+	/* Whether gravity points towards increasing coordinates */
+	private static boolean isForward(Direction gravity)
+	{
+		Vector2i vel = gravity.toVector();
+		return vel.getX() + vel.getY() > 0;
+	}
+
+	private static int count(long[] bits, int base, int words)
+	{
+		int ret = 0;
+		for (int i = 0; i < words; ++i)
+			ret += Long.bitCount(bits[base + i]);
+		return ret;
+	}
+
+	private static boolean isFull(long[] bits, int base, int length)
+	{
+		int fullWords = length >>> 6;
+		for (int i = 0; i < fullWords; ++i)
+			if (bits[base + i] != -1L) return false;
+
+		int rest = length & 63;
+		if (rest == 0) return true;
+		long mask = (1L << rest) - 1;
+		return bits[base + fullWords] == mask;
+	}
+
+	/* First set bit at or after from, or length if there is none */
+	private static int nextSetBit(long[] bits, int base, int from, int length)
+	{
+		if (from >= length) return length;
+
+		int word = from >>> 6;
+		long cur = bits[base + word] & (-1L << from);
+		int lastWord = (length - 1) >>> 6;
+		while (true)
+		{
+			if (cur != 0)
+				return (word << 6) + Long.numberOfTrailingZeros(cur);
+			if (++word > lastWord) return length;
+			cur = bits[base + word];
+		}
+	}
+
+	/* First clear bit at or after from, or length if there is none */
+	private static int nextClearBit(long[] bits, int base, int from,
+	                                int length)
+	{
+		if (from >= length) return length;
+
+		int word = from >>> 6;
+		long cur = ~bits[base + word] & (-1L << from);
+		int lastWord = (length - 1) >>> 6;
+		while (true)
+		{
+			if (cur != 0)
+				return Math.min(length,
+				                (word << 6) + Long.numberOfTrailingZeros(cur));
+			if (++word > lastWord) return length;
+			cur = ~bits[base + word];
+		}
+	}
+
+	/* Last clear bit at or before from, or -1 if there is none */
+	private static int previousClearBit(long[] bits, int base, int from)
+	{
+		if (from < 0) return -1;
+
+		int word = from >>> 6;
+		long cur = ~bits[base + word] & (-1L >>> (63 - (from & 63)));
+		while (true)
+		{
+			if (cur != 0)
+				return (word << 6) + 63 - Long.numberOfLeadingZeros(cur);
+			if (--word < 0) return -1;
+			cur = ~bits[base + word];
+		}
+	}
+
+	/* Last set bit at or before from, or -1 if there is none */
+	private static int previousSetBit(long[] bits, int base, int from)
+	{
+		if (from < 0) return -1;
+
+		int word = from >>> 6;
+		long cur = bits[base + word] & (-1L >>> (63 - (from & 63)));
+		while (true)
+		{
+			if (cur != 0)
+				return (word << 6) + 63 - Long.numberOfLeadingZeros(cur);
+			if (--word < 0) return -1;
+			cur = bits[base + word];
+		}
+	}
+}
@@ -0,0 +1,309 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ramona Seay
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+
+package wireblocks;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/*
+ * Cell storage that lives outside the Java heap, for boards of hundreds of
+ * millions of cells. Wire masks take four bits per cell and the occupied and
+ * floating flags one bit each, all in direct buffers, so a large board costs
+ * the garbage collector nothing to trace. Palette indices get a four bit
+ * plane of their own, which is only allocated once a block is colored; this
+ * limits an off-heap grid to a palette of 16 colors.
+ *
+ * Cell indices are y * width + x. The memory is released as soon as the
+ * storage is closed, after which it must not be used again. Snapshots are not
+ * supported, since they would need a full copy of the board.
+ *
+ * The buffers use the same layout as the sections of a GridFile, which lets a
+ * saved board be mapped straight into a storage without reading it.
+ */
+public class OffHeapGridStorage implements GridStorage
+{
+	public static final int MAX_COLORS = 16;
+
+	private int        m_width;
+	private int        m_height;
+	private int        m_numCells;
+	private int        m_count;
+
+	private ByteBuffer m_masks;
+	private ByteBuffer m_colors;
+	private ByteBuffer m_occupied;
+	private ByteBuffer m_floating;
+
+	/* Mapped file the buffers are slices of, or null */
+	private ByteBuffer m_mapping;
+
+	public OffHeapGridStorage(int width, int height)
+	{
+		if ((long)width * height > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Grid of " + width + " x "
+			                                   + height + " is too large");
+		m_width = width;
+		m_height = height;
+		m_numCells = width * height;
+		m_count = 0;
+
+		m_masks = allocate(nibbleBytes(m_numCells));
+		m_colors = null;
+		m_occupied = allocate(bitsetBytes(m_numCells));
+		m_floating = allocate(bitsetBytes(m_numCells));
+		m_mapping = null;
+	}
+
+	/*
+	 * Wraps sections of an existing buffer, such as a mapped GridFile. The
+	 * storage takes ownership of mapping and unmaps it on close.
+	 */
+	OffHeapGridStorage(int width, int height, int count, ByteBuffer mapping,
+	                   int masksOffset, int occupiedOffset, int floatingOffset)
+	{
+		m_width = width;
+		m_height = height;
+		m_numCells = width * height;
+		m_count = count;
+
+		m_masks = slice(mapping, masksOffset, nibbleBytes(m_numCells));
+		m_colors = null;
+		m_occupied = slice(mapping, occupiedOffset, bitsetBytes(m_numCells));
+		m_floating = slice(mapping, floatingOffset, bitsetBytes(m_numCells));
+		m_mapping = mapping;
+	}
+
+	/* Bytes needed for n four-bit entries */
+	static int nibbleBytes(int n)
+	{
+		return (int)(((long)n + 1) >>> 1);
+	}
+
+	/* Bytes needed for a bitset of n bits, in whole longs */
+	static int bitsetBytes(int n)
+	{
+		return (int)((((long)n + 63) >>> 6) << 3);
+	}
+
+	private static ByteBuffer allocate(int bytes)
+	{
+		return ByteBuffer.allocateDirect(bytes)
+		        .order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static ByteBuffer slice(ByteBuffer buffer, int offset, int bytes)
+	{
+		ByteBuffer ret = buffer.duplicate();
+		ret.position(offset);
+		ret.limit(offset + bytes);
+		return ret.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	@Override
+	public int getWidth()
+	{
+		return m_width;
+	}
+
+	@Override
+	public int getHeight()
+	{
+		return m_height;
+	}
+
+	@Override
+	public int indexOf(int x, int y)
+	{
+		return y * m_width + x;
+	}
+
+	@Override
+	public int getX(int index)
+	{
+		return index % m_width;
+	}
+
+	@Override
+	public int getY(int index)
+	{
+		return index / m_width;
+	}
+
+	@Override
+	public int getIndexLimit()
+	{
+		return m_numCells;
+	}
+
+	/* The whole board is summarized as a single tile */
+	@Override
+	public int getTileSize()
+	{
+		return Math.max(1, Math.max(m_width, m_height));
+	}
+
+	@Override
+	public int getTileOccupancy(int tileX, int tileY)
+	{
+		return m_count;
+	}
+
+	@Override
+	public GridStorage snapshot()
+	{
+		throw new UnsupportedOperationException(
+		        "Off-heap grid storage cannot be snapshotted");
+	}
+
+	/* The layout is fixed, since it is also the layout of the file format */
+	@Override
+	public void setColumnMajor(boolean columnMajor)
+	{
+	}
+
+	@Override
+	public void close()
+	{
+		if (m_mapping != null)
+			DirectMemory.free(m_mapping);
+		else
+		{
+			DirectMemory.free(m_masks);
+			DirectMemory.free(m_occupied);
+			DirectMemory.free(m_floating);
+		}
+		DirectMemory.free(m_colors);
+		m_mapping = null;
+		m_masks = null;
+		m_colors = null;
+		m_occupied = null;
+		m_floating = null;
+	}
+
+	@Override
+	public boolean isOccupied(int index)
+	{
+		return getBit(m_occupied, index);
+	}
+
+	@Override
+	public int getWireMask(int index)
+	{
+		return getNibble(m_masks, index);
+	}
+
+	@Override
+	public boolean isFloating(int index)
+	{
+		return getBit(m_floating, index);
+	}
+
+	@Override
+	public int getColorIndex(int index)
+	{
+		if (m_colors == null) return 0;
+		return getNibble(m_colors, index);
+	}
+
+	@Override
+	public void setCell(int index, int wireMask, boolean floating,
+	                    int colorIndex)
+	{
+		if (!getBit(m_occupied, index))
+		{
+			setBit(m_occupied, index, true);
+			m_count++;
+		}
+		setNibble(m_masks, index, wireMask);
+		setBit(m_floating, index, floating);
+		setColorIndex(index, colorIndex);
+	}
+
+	@Override
+	public void clearCell(int index)
+	{
+		if (!getBit(m_occupied, index)) return;
+
+		setBit(m_occupied, index, false);
+		setBit(m_floating, index, false);
+		setNibble(m_masks, index, 0);
+		if (m_colors != null) setNibble(m_colors, index, 0);
+		m_count--;
+	}
+
+	@Override
+	public void setWireMask(int index, int wireMask)
+	{
+		setNibble(m_masks, index, wireMask);
+	}
+
+	@Override
+	public void setFloating(int index, boolean floating)
+	{
+		setBit(m_floating, index, floating);
+	}
+
+	@Override
+	public void setColorIndex(int index, int colorIndex)
+	{
+		if (colorIndex >= MAX_COLORS)
+			throw new IllegalArgumentException("Off-heap grids support at most "
+			                                   + MAX_COLORS + " colors");
+		if (m_colors == null)
+		{
+			if (colorIndex == 0) return;
+			m_colors = allocate(nibbleBytes(m_numCells));
+		}
+		setNibble(m_colors, index, colorIndex);
+	}
+
+	private static int getNibble(ByteBuffer buffer, int index)
+	{
+		int shift = (index & 1) << 2;
+		return (buffer.get(index >>> 1) >>> shift) & 0xf;
+	}
+
+	private static void setNibble(ByteBuffer buffer, int index, int value)
+	{
+		int shift = (index & 1) << 2;
+		int b = buffer.get(index >>> 1);
+		b = (b & ~(0xf << shift)) | ((value & 0xf) << shift);
+		buffer.put(index >>> 1, (byte)b);
+	}
+
+	private static boolean getBit(ByteBuffer buffer, int index)
+	{
+		return (buffer.getLong((index >>> 6) << 3) & (1L << index)) != 0;
+	}
+
+	private static void setBit(ByteBuffer buffer, int index, boolean value)
+	{
+		int offset = (index >>> 6) << 3;
+		long word = buffer.getLong(offset);
+		if (value)
+			word |= 1L << index;
+		else
+			word &= ~(1L << index);
+		buffer.putLong(offset, word);
+	}
+}
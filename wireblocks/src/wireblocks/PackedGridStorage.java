@@ -0,0 +1,361 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ramona Seay
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+
+package wireblocks;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Bit-packed cell storage. Every cell keeps its wire mask and palette index in
+ * one byte each, and the occupied and floating flags live in bitsets of one
+ * bit per cell. Each row of the board is a separate slab so that snapshots
+ * can share rows and writes only copy the rows they touch.
+ *
+ * Cell indices are (y << rowShift) | x, where each row is padded up to a
+ * power of two, so finding the row of an index is a single shift.
+ *
+ * The slabs can also be laid out as columns instead (see setColumnMajor),
+ * so that walking down a column stays within one slab. The indices do not
+ * depend on the layout.
+ */
+public class PackedGridStorage implements GridStorage
+{
+	/* Every storage instance draws a distinct epoch from here */
+	private static final AtomicInteger EPOCHS = new AtomicInteger();
+
+	/* Side of the blocks the layout is transposed in */
+	private static final int BLOCK_SIZE = 64;
+
+	/* One row of the board, or one column in column-major layout */
+	private static final class Slab
+	{
+		private final int    m_epoch;
+		private final byte[] m_masks;
+		private final byte[] m_colors;
+		private final long[] m_occupied;
+		private final long[] m_floating;
+
+		public Slab(int epoch, int length)
+		{
+			int numWords = (length + 63) >>> 6;
+			m_epoch = epoch;
+			m_masks = new byte[length];
+			m_colors = new byte[length];
+			m_occupied = new long[numWords];
+			m_floating = new long[numWords];
+		}
+
+		public Slab(int epoch, Slab rhs)
+		{
+			m_epoch = epoch;
+			m_masks = rhs.m_masks.clone();
+			m_colors = rhs.m_colors.clone();
+			m_occupied = rhs.m_occupied.clone();
+			m_floating = rhs.m_floating.clone();
+		}
+	}
+
+	private int     m_width;
+	private int     m_height;
+	private int     m_rowShift;
+	private int     m_rowMask;
+	private int     m_count;
+
+	/*
+	 * Slabs whose epoch differs from m_epoch may be shared with a snapshot
+	 * and are copied before they are written. m_sharedSlabs says the same
+	 * about the m_slabs array itself.
+	 */
+	private int     m_epoch;
+	private boolean m_sharedSlabs;
+	private boolean m_columnMajor;
+	private Slab[]  m_slabs;
+
+	public PackedGridStorage(int width, int height)
+	{
+		m_width = width;
+		m_height = height;
+		m_rowShift = 32 - Integer.numberOfLeadingZeros(Math.max(width - 1, 0));
+		m_rowMask = (1 << m_rowShift) - 1;
+		if (((long)height << m_rowShift) > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Grid of " + width + " x "
+			                                   + height + " is too large");
+		m_count = 0;
+
+		m_epoch = EPOCHS.incrementAndGet();
+		m_sharedSlabs = false;
+		m_columnMajor = false;
+		m_slabs = new Slab[height];
+		for (int y = 0; y < height; ++y)
+			m_slabs[y] = new Slab(m_epoch, width);
+	}
+
+	/* Shares every slab of rhs; see snapshot() */
+	private PackedGridStorage(PackedGridStorage rhs)
+	{
+		m_width = rhs.m_width;
+		m_height = rhs.m_height;
+		m_rowShift = rhs.m_rowShift;
+		m_rowMask = rhs.m_rowMask;
+		m_count = rhs.m_count;
+
+		m_epoch = EPOCHS.incrementAndGet();
+		m_sharedSlabs = true;
+		m_columnMajor = rhs.m_columnMajor;
+		m_slabs = rhs.m_slabs;
+	}
+
+	@Override
+	public int getWidth()
+	{
+		return m_width;
+	}
+
+	@Override
+	public int getHeight()
+	{
+		return m_height;
+	}
+
+	@Override
+	public int indexOf(int x, int y)
+	{
+		return (y << m_rowShift) | x;
+	}
+
+	@Override
+	public int getX(int index)
+	{
+		return index & m_rowMask;
+	}
+
+	@Override
+	public int getY(int index)
+	{
+		return index >>> m_rowShift;
+	}
+
+	@Override
+	public int getIndexLimit()
+	{
+		return m_height << m_rowShift;
+	}
+
+	/* The whole board is summarized as a single tile */
+	@Override
+	public int getTileSize()
+	{
+		return Math.max(1, Math.max(m_width, m_height));
+	}
+
+	@Override
+	public int getTileOccupancy(int tileX, int tileY)
+	{
+		return m_count;
+	}
+
+	@Override
+	public GridStorage snapshot()
+	{
+		PackedGridStorage snapshot = new PackedGridStorage(this);
+
+		/* From now on every existing slab is shared */
+		m_epoch = EPOCHS.incrementAndGet();
+		m_sharedSlabs = true;
+		return snapshot;
+	}
+
+	/*
+	 * Rebuilds the slabs as columns, or as rows again, in one O(cells) pass
+	 * over square blocks so that both the slabs read and the ones written
+	 * stay in cache. Snapshots keep the layout they were taken with.
+	 */
+	@Override
+	public void setColumnMajor(boolean columnMajor)
+	{
+		if (columnMajor == m_columnMajor) return;
+
+		int numSlabs = columnMajor? m_width : m_height;
+		int length = columnMajor? m_height : m_width;
+		Slab[] slabs = new Slab[numSlabs];
+		for (int i = 0; i < numSlabs; ++i)
+			slabs[i] = new Slab(m_epoch, length);
+
+		for (int blockMajor = 0; blockMajor < numSlabs;
+		     blockMajor += BLOCK_SIZE)
+			for (int blockMinor = 0; blockMinor < length;
+			     blockMinor += BLOCK_SIZE)
+			{
+				int endMajor = Math.min(numSlabs, blockMajor + BLOCK_SIZE);
+				int endMinor = Math.min(length, blockMinor + BLOCK_SIZE);
+				for (int minor = blockMinor; minor < endMinor; ++minor)
+				{
+					Slab src = m_slabs[minor];
+					for (int major = blockMajor; major < endMajor; ++major)
+						copyCell(src, major, slabs[major], minor);
+				}
+			}
+
+		m_slabs = slabs;
+		m_sharedSlabs = false;
+		m_columnMajor = columnMajor;
+	}
+
+	public boolean isColumnMajor()
+	{
+		return m_columnMajor;
+	}
+
+	/* Everything lives on the heap */
+	@Override
+	public void close()
+	{
+	}
+
+	@Override
+	public boolean isOccupied(int index)
+	{
+		Slab slab = m_slabs[slabOf(index)];
+		int pos = posOf(index);
+		return (slab.m_occupied[pos >>> 6] & (1L << pos)) != 0;
+	}
+
+	@Override
+	public int getWireMask(int index)
+	{
+		return m_slabs[slabOf(index)].m_masks[posOf(index)];
+	}
+
+	@Override
+	public boolean isFloating(int index)
+	{
+		Slab slab = m_slabs[slabOf(index)];
+		int pos = posOf(index);
+		return (slab.m_floating[pos >>> 6] & (1L << pos)) != 0;
+	}
+
+	@Override
+	public int getColorIndex(int index)
+	{
+		return m_slabs[slabOf(index)].m_colors[posOf(index)] & 0xff;
+	}
+
+	@Override
+	public void setCell(int index, int wireMask, boolean floating,
+	                    int colorIndex)
+	{
+		Slab slab = writableSlab(slabOf(index));
+		int pos = posOf(index);
+		long bit = 1L << pos;
+		if ((slab.m_occupied[pos >>> 6] & bit) == 0)
+		{
+			slab.m_occupied[pos >>> 6] |= bit;
+			m_count++;
+		}
+		slab.m_masks[pos] = (byte)wireMask;
+		slab.m_colors[pos] = (byte)colorIndex;
+		if (floating)
+			slab.m_floating[pos >>> 6] |= bit;
+		else
+			slab.m_floating[pos >>> 6] &= ~bit;
+	}
+
+	@Override
+	public void clearCell(int index)
+	{
+		if (!isOccupied(index)) return;
+
+		Slab slab = writableSlab(slabOf(index));
+		int pos = posOf(index);
+		slab.m_occupied[pos >>> 6] &= ~(1L << pos);
+		slab.m_floating[pos >>> 6] &= ~(1L << pos);
+		slab.m_masks[pos] = 0;
+		slab.m_colors[pos] = 0;
+		m_count--;
+	}
+
+	@Override
+	public void setWireMask(int index, int wireMask)
+	{
+		Slab slab = writableSlab(slabOf(index));
+		slab.m_masks[posOf(index)] = (byte)wireMask;
+	}
+
+	@Override
+	public void setFloating(int index, boolean floating)
+	{
+		Slab slab = writableSlab(slabOf(index));
+		int pos = posOf(index);
+		if (floating)
+			slab.m_floating[pos >>> 6] |= 1L << pos;
+		else
+			slab.m_floating[pos >>> 6] &= ~(1L << pos);
+	}
+
+	@Override
+	public void setColorIndex(int index, int colorIndex)
+	{
+		Slab slab = writableSlab(slabOf(index));
+		slab.m_colors[posOf(index)] = (byte)colorIndex;
+	}
+
+	/* The slab holding a cell: its row, or its column in column-major */
+	private int slabOf(int index)
+	{
+		return m_columnMajor? index & m_rowMask : index >>> m_rowShift;
+	}
+
+	/* Position of a cell within its slab */
+	private int posOf(int index)
+	{
+		return m_columnMajor? index >>> m_rowShift : index & m_rowMask;
+	}
+
+	/* Copy-on-write: make sure slab i belongs to this storage alone */
+	private Slab writableSlab(int i)
+	{
+		if (m_sharedSlabs)
+		{
+			m_slabs = m_slabs.clone();
+			m_sharedSlabs = false;
+		}
+
+		Slab slab = m_slabs[i];
+		if (slab.m_epoch != m_epoch)
+		{
+			slab = new Slab(m_epoch, slab);
+			m_slabs[i] = slab;
+		}
+		return slab;
+	}
+
+	private static void copyCell(Slab src, int srcPos, Slab dst, int dstPos)
+	{
+		dst.m_masks[dstPos] = src.m_masks[srcPos];
+		dst.m_colors[dstPos] = src.m_colors[srcPos];
+		long bit = 1L << dstPos;
+		if ((src.m_occupied[srcPos >>> 6] & (1L << srcPos)) != 0)
+			dst.m_occupied[dstPos >>> 6] |= bit;
+		if ((src.m_floating[srcPos >>> 6] & (1L << srcPos)) != 0)
+			dst.m_floating[dstPos >>> 6] |= bit;
+	}
+}
@@ -22,12 +22,55 @@
 
 package wireblocks;
 
-import java.util.LinkedList;
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.Arrays;
 
 public class PathFinder
 {
+	/* Directions by wire bit */
+	private static final Direction[] DIRECTIONS = Direction.toArray();
+
+	/*
+	 * LINKS[(a << 4) | b] has the bit of direction d set when a block with
+	 * wire mask a connects to a block with mask b lying in direction d.
+	 */
+	private static final byte[]      LINKS      = new byte[256];
+
+	static
+	{
+		for (int a = 0; a < 16; ++a)
+			for (int b = 0; b < 16; ++b)
+			{
+				int links = 0;
+				for (Direction direction : DIRECTIONS)
+				{
+					int wire = direction.getMask();
+					int reverse = direction.reverse().getMask();
+					if ((a & wire) != 0 && (b & reverse) != 0) links |= wire;
+				}
+				LINKS[(a << 4) | b] = (byte)links;
+			}
+	}
+
+	/* Scratch buffers, grown on demand and reused between calls */
+	private int[]  m_queue;
+	private long[] m_visited;
+	private long[] m_claimed;
+	private long[] m_srcReach;
+	private long[] m_dstReach;
+	private int[]  m_distance;
+	private int[]  m_deque;
+
+	public PathFinder()
+	{
+		m_queue = new int[0];
+		m_visited = new long[0];
+		m_claimed = new long[0];
+		m_srcReach = new long[0];
+		m_dstReach = new long[0];
+		m_distance = new int[0];
+		m_deque = new int[0];
+	}
+
 	/*
 	 * Tests if there is a connected path from any cell in src to any cell in
 	 * dst. Returns a vector of all cell locations contained in any path, or an
@@ -37,27 +80,71 @@ public class PathFinder
 	                                     Direction srcWire, Vector2i[] dst,
 	                                     Direction dstWire)
 	{
-		Set<Vector2i> ret = new TreeSet<Vector2i>();
-		Set<Vector2i> visited = new TreeSet<Vector2i>();
+		int[] srcCells = new int[src.length];
+		for (int i = 0; i < src.length; ++i)
+			srcCells[i] = grid.getIndex(src[i]);
+		int[] dstCells = new int[dst.length];
+		for (int i = 0; i < dst.length; ++i)
+			dstCells[i] = grid.getIndex(dst[i]);
+
+		int[] cells = findConnectedCells(grid, srcCells, srcWire, dstCells,
+		                                 dstWire);
 
-		for (Vector2i srcLoc : src)
+		Vector2i[] ret = new Vector2i[cells.length];
+		for (int i = 0; i < cells.length; ++i)
+			ret[i] = new Vector2i(grid.getX(cells[i]), grid.getY(cells[i]));
+		Arrays.sort(ret);
+		return ret;
+	}
+
+	/* Same as above, working on the grid's packed cell indices */
+	public int[] findConnectedCells(Grid grid, int[] src, Direction srcWire,
+	                                int[] dst, Direction dstWire)
+	{
+		int[] ret = new int[grid.getWidth() * grid.getHeight()];
+		int retSize = findConnectedCells(grid, src, srcWire, dst, dstWire, ret);
+		return Arrays.copyOf(ret, retSize);
+	}
+
+	/*
+	 * Same again, writing the cells into out and returning their number. out
+	 * must have room for every cell of the grid. Once the scratch buffers
+	 * have grown to the size of the grid this allocates nothing.
+	 */
+	public int findConnectedCells(Grid grid, int[] src, Direction srcWire,
+	                              int[] dst, Direction dstWire, int[] out)
+	{
+		prepare(grid, dst.length);
+		int retSize = 0;
+		int tail = 0;
+
+		for (int i = 0; i < src.length; ++i)
 		{
+			int srcCell = src[i];
+
 			/* Make sure it's connected to the wall */
-			Block srcBlock = grid.getBlock(srcLoc);
-			if (srcBlock == null) continue;
-			if (!srcBlock.hasWire(srcWire)) continue;
+			if (!grid.isOccupied(srcCell)) continue;
+			if (!grid.hasWire(srcCell, srcWire)) continue;
 
 			/* Find all cells reachable from src */
-			Set<Vector2i> reachable = findReachableFrom(grid, srcLoc, visited);
-			
-			/* Check if any of the cells in dst were reached */
+			int head = tail;
+			tail = findReachableFrom(grid, srcCell, tail);
+			if (tail == head) continue;
+
+			/*
+			 * Check if any of the cells in dst were reached. A goal that is
+			 * visited for the first time must have been reached by this
+			 * search, since earlier searches have already claimed theirs.
+			 */
 			boolean foundGoal = false;
-			for (Vector2i dstLoc : dst)
+			for (int j = 0; j < dst.length; ++j)
 			{
-				if (!reachable.contains(dstLoc)) continue;
-				Block dstBlock = grid.getBlock(dstLoc);
-				if (dstBlock == null) continue;
-				if (!dstBlock.hasWire(dstWire)) continue;
+				int dstCell = dst[j];
+				if (isSet(m_claimed, j)) continue;
+				if (!isSet(m_visited, dstCell)) continue;
+				m_claimed[j >>> 6] |= 1L << j;
+				if (!grid.isOccupied(dstCell)) continue;
+				if (!grid.hasWire(dstCell, dstWire)) continue;
 				foundGoal = true;
 			}
 			
@@ -65,71 +152,357 @@ public class PathFinder
 			if (!foundGoal) continue;
 			
 			/* Add all of the found cells */
-			ret.addAll(reachable);
+			System.arraycopy(m_queue, head, out, retSize, tail - head);
+			retSize += tail - head;
 		}
 
-		return ret.toArray(new Vector2i[ret.size()]);
+		/* Leave the scratch buffers clean for the next call */
+		for (int i = 0; i < tail; ++i)
+			m_visited[m_queue[i] >>> 6] = 0;
+		Arrays.fill(m_claimed, 0, (dst.length + 63) >>> 6, 0);
+
+		return retSize;
+	}
+
+	/* Grows the scratch buffers to fit grid */
+	private void prepare(Grid grid, int numGoals)
+	{
+		int numCells = grid.getWidth() * grid.getHeight();
+		if (m_queue.length < numCells) m_queue = new int[numCells];
+
+		int visitedWords = (grid.getIndexLimit() + 63) >>> 6;
+		if (m_visited.length < visitedWords)
+			m_visited = new long[visitedWords];
+
+		int claimedWords = (numGoals + 63) >>> 6;
+		if (m_claimed.length < claimedWords)
+			m_claimed = new long[claimedWords];
 	}
 
-	/* Find the set of all reachable cells from the cell src */
-	private Set<Vector2i> findReachableFrom(Grid grid, Vector2i src,
-	                                        Set<Vector2i> visited)
+	/*
+	 * Breadth-first search over every cell reachable from src. The queue
+	 * starts at tail, the cells found are left in m_queue from there on, and
+	 * the new end of the queue is returned.
+	 */
+	private int findReachableFrom(Grid grid, int src, int tail)
 	{
-		Set<Vector2i> ret = new TreeSet<Vector2i>();
+		/* Avoid repeat visits */
+		if (isSet(m_visited, src)) return tail;
 
 		/* Set up the queue for the breadth-first search */
-		LinkedList<Vector2i> queue = new LinkedList<Vector2i>();
-		queue.add(src);
+		int[] queue = m_queue;
+		long[] visited = m_visited;
+		int head = tail;
+		queue[tail++] = src;
+		visited[src >>> 6] |= 1L << src;
 		
 		/* Perform the search */
-		while (!queue.isEmpty())
+		while (head < tail)
 		{
-			/* Pop off the head of the list */
-			Vector2i curLoc = queue.remove();
-			
-			/* Avoid repeat visits */
-			if (visited.contains(curLoc)) continue;
-
-			/*
-			 * Add to global visited list and the set of reachable from this
-			 * source
-			 */
-			visited.add(curLoc);
-			ret.add(curLoc);
-			
-			/* Make sure there is actually a block here */
-			Block curBlock = grid.getBlock(curLoc);
-			if (curBlock == null) continue;
+			/* Pop off the head of the queue */
+			int curCell = queue[head++];
+			int curMask = grid.getWireMask(curCell);
 
-			/* Now visit all connected neighbors */
-			for (Direction direction : Direction.toArray())
+			/* Now visit all connected neighbors, one wire at a time */
+			for (int wires = curMask; wires != 0; wires &= wires - 1)
 			{
-				/* Make sure the block has a wire in this direction first */
-				if (!curBlock.hasWire(direction)) continue;
+				int wire = Integer.numberOfTrailingZeros(wires);
 
-				/* Compute the location of the neighboring block */
-				Vector2i vel = direction.toVector();
-				Vector2i newLoc = curLoc.add(vel);
+				/* Compute the neighboring cell, making sure it's in bounds */
+				int newCell = grid.getNeighbor(curCell, DIRECTIONS[wire]);
+				if (newCell < 0) continue;
 
-				/* Make sure we're still in bounds */
-				if (!grid.isInBounds(newLoc)) continue;
+				/* Avoid repeat visits */
+				if ((visited[newCell >>> 6] & (1L << newCell)) != 0) continue;
 
 				/* Check there is actually a block in the neighboring cell */
-				Block newBlock = grid.getBlock(newLoc);
-				if (newBlock == null) continue;
-
-				/*
-				 * Make sure the other block also has a wire coming in from that
-				 * direction
-				 */
-				Direction reverse = direction.reverse();
-				if (!newBlock.hasWire(reverse)) continue;
-
-				/* Add the new location to the queue */
-				queue.add(newLoc);
+				if (!grid.isOccupied(newCell)) continue;
+
+				/* Make sure the other block has a wire coming back */
+				int newMask = grid.getWireMask(newCell);
+				if ((LINKS[(curMask << 4) | newMask] & (1 << wire)) == 0)
+					continue;
+
+				/* Add the new cell to the queue */
+				visited[newCell >>> 6] |= 1L << newCell;
+				queue[tail++] = newCell;
+			}
+		}
+
+		return tail;
+	}
+
+	/*
+	 * Bit-parallel version of findConnectedCells for wide boards. Rather than
+	 * visiting cells one at a time it floods whole rows of wire bitboards,
+	 * 64 cells per word, until nothing changes. Everything reachable from the
+	 * source wall is intersected with everything reachable from the target
+	 * wall, which leaves exactly the components touching both. Returns the
+	 * same cells as findConnectedCells, in row order, and allocates nothing
+	 * once its buffers have grown to the size of the grid.
+	 */
+	public int findConnectedCellsBitwise(Grid grid, int[] src,
+	                                     Direction srcWire, int[] dst,
+	                                     Direction dstWire, int[] out)
+	{
+		WireBoards wires = grid.wireBoards();
+		int rowWords = wires.getRowWords();
+		int numWords = wires.getHeight() * rowWords;
+		if (m_srcReach.length < numWords)
+		{
+			m_srcReach = new long[numWords];
+			m_dstReach = new long[numWords];
+		}
+
+		flood(grid, wires, src, srcWire, m_srcReach);
+		flood(grid, wires, dst, dstWire, m_dstReach);
+
+		int count = 0;
+		for (int y = 0; y < wires.getHeight(); ++y)
+			for (int w = 0; w < rowWords; ++w)
+			{
+				int word = y * rowWords + w;
+				long bits = m_srcReach[word] & m_dstReach[word];
+				for (; bits != 0; bits &= bits - 1)
+				{
+					int x = (w << 6) + Long.numberOfTrailingZeros(bits);
+					out[count++] = grid.getIndex(x, y);
+				}
+			}
+		return count;
+	}
+
+	/* Fills reach with every cell connected to a seed wired towards wall */
+	private static void flood(Grid grid, WireBoards wires, int[] seeds,
+	                          Direction wall, long[] reach)
+	{
+		int height = wires.getHeight();
+		int rowWords = wires.getRowWords();
+		Arrays.fill(reach, 0, height * rowWords, 0);
+
+		long[] wallPlane = wires.getPlane(Direction.getIndex(wall));
+		for (int seed : seeds)
+		{
+			int x = grid.getX(seed);
+			int word = grid.getY(seed) * rowWords + (x >>> 6);
+			reach[word] |= wallPlane[word] & (1L << x);
+		}
+
+		long[] north = wires.getPlane(Direction.getIndex(Direction.NORTH));
+		long[] south = wires.getPlane(Direction.getIndex(Direction.SOUTH));
+
+		/* Sweep down and back up until a round trip adds nothing */
+		boolean changed = true;
+		while (changed)
+		{
+			changed = false;
+			for (int y = 0; y < height; ++y)
+			{
+				changed |= spreadAlongRow(wires, reach, y);
+				if (y + 1 < height)
+					changed |= spreadToRow(reach, south, north, y, y + 1,
+					                       rowWords);
+			}
+			for (int y = height - 1; y >= 0; --y)
+			{
+				changed |= spreadAlongRow(wires, reach, y);
+				if (y > 0)
+					changed |= spreadToRow(reach, north, south, y, y - 1,
+					                       rowWords);
 			}
 		}
+	}
+
+	/*
+	 * Grows the reachable cells of row y east and west as far as the wires
+	 * go. Returns whether anything was added.
+	 */
+	private static boolean spreadAlongRow(WireBoards wires, long[] reach,
+	                                      int y)
+	{
+		long[] east = wires.getPlane(Direction.getIndex(Direction.EAST));
+		long[] west = wires.getPlane(Direction.getIndex(Direction.WEST));
+		int rowWords = wires.getRowWords();
+		int base = y * rowWords;
+
+		boolean ret = false;
+		boolean changed = true;
+		while (changed)
+		{
+			changed = false;
 
+			/* Eastward: bit x moves to x + 1, carrying between words */
+			long carry = 0;
+			for (int w = 0; w < rowWords; ++w)
+			{
+				int word = base + w;
+				long out = reach[word] & east[word];
+				long grown = ((out << 1) | carry) & west[word];
+				carry = out >>> 63;
+				if ((grown & ~reach[word]) != 0)
+				{
+					reach[word] |= grown;
+					changed = true;
+				}
+			}
+
+			/* Westward: bit x moves to x - 1 */
+			carry = 0;
+			for (int w = rowWords - 1; w >= 0; --w)
+			{
+				int word = base + w;
+				long out = reach[word] & west[word];
+				long grown = ((out >>> 1) | carry) & east[word];
+				carry = out << 63;
+				if ((grown & ~reach[word]) != 0)
+				{
+					reach[word] |= grown;
+					changed = true;
+				}
+			}
+
+			ret |= changed;
+		}
 		return ret;
 	}
+
+	/*
+	 * Moves reachable cells of row from with a wire in plane out into row to,
+	 * where they need a wire in plane in coming back.
+	 */
+	private static boolean spreadToRow(long[] reach, long[] out, long[] in,
+	                                   int from, int to, int rowWords)
+	{
+		boolean changed = false;
+		for (int w = 0; w < rowWords; ++w)
+		{
+			int src = from * rowWords + w;
+			int dst = to * rowWords + w;
+			long grown = reach[src] & out[src] & in[dst];
+			if ((grown & ~reach[dst]) != 0)
+			{
+				reach[dst] |= grown;
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	/*
+	 * How close the board is to joining the two walls: the least number of
+	 * cells that would have to be filled or replaced by a block with other
+	 * wires before some src cell is wired to some dst cell. A replaced cell
+	 * can take any wires, so it links to each neighbor that has a wire
+	 * pointing back at it; a cell left alone needs a block with the wires
+	 * the path uses. Zero means the walls are already connected. Runs a 0-1
+	 * breadth-first search over each cell both kept and replaced, where
+	 * stepping onto a kept cell costs nothing and onto a replaced one costs
+	 * one, and allocates nothing once its buffers have grown to the size of
+	 * the grid.
+	 */
+	public int findCellsToChange(Grid grid, int[] src, Direction srcWire,
+	                             int[] dst, Direction dstWire)
+	{
+		int limit = grid.getIndexLimit();
+		int numCells = grid.getWidth() * grid.getHeight();
+		prepare(grid, 0);
+		if (m_distance.length < 2 * limit) m_distance = new int[2 * limit];
+
+		/*
+		 * State cell is the cell as it stands and cell + limit the cell
+		 * replaced. A state's distance only ever drops from d + 1 to d, once.
+		 */
+		int capacity = Integer.highestOneBit(4 * numCells + 2 * src.length)
+		               << 1;
+		if (m_deque.length < capacity) m_deque = new int[capacity];
+		int[] deque = m_deque;
+		int[] distance = m_distance;
+		long[] isGoal = m_visited;
+		int mask = deque.length - 1;
+
+		for (int y = 0; y < grid.getHeight(); ++y)
+			for (int x = 0; x < grid.getWidth(); ++x)
+			{
+				int cell = grid.getIndex(x, y);
+				distance[cell] = Integer.MAX_VALUE;
+				distance[cell + limit] = Integer.MAX_VALUE;
+			}
+		for (int cell : dst)
+			isGoal[cell >>> 6] |= 1L << cell;
+
+		/* Wall cells already wired in go in front of the replaced ones */
+		int head = 0;
+		int tail = 0;
+		for (int cell : src)
+			if (isWired(grid, cell, srcWire) && distance[cell] != 0)
+			{
+				distance[cell] = 0;
+				deque[tail++] = cell;
+			}
+		for (int cell : src)
+			if (distance[cell + limit] != 1)
+			{
+				distance[cell + limit] = 1;
+				deque[tail++] = cell + limit;
+			}
+
+		int best = Integer.MAX_VALUE;
+		while (head != tail)
+		{
+			int curState = deque[head];
+			head = (head + 1) & mask;
+			boolean curReplaced = curState >= limit;
+			int curCell = curReplaced? curState - limit : curState;
+			int curDistance = distance[curState];
+
+			/* States come off in order of distance */
+			if (isSet(isGoal, curCell)
+			    && (curReplaced || isWired(grid, curCell, dstWire)))
+			{
+				best = curDistance;
+				break;
+			}
+
+			int curMask = curReplaced? 0xF : grid.getWireMask(curCell);
+			for (int wire = 0; wire < DIRECTIONS.length; ++wire)
+			{
+				if ((curMask & (1 << wire)) == 0) continue;
+				int newCell = grid.getNeighbor(curCell, DIRECTIONS[wire]);
+				if (newCell < 0) continue;
+
+				/* Keep the neighbor if it has the wire back, else replace it */
+				boolean linked = grid.isOccupied(newCell)
+				                 && (LINKS[(curMask << 4)
+				                           | grid.getWireMask(newCell)]
+				                     & (1 << wire)) != 0;
+				if (linked && curDistance < distance[newCell])
+				{
+					distance[newCell] = curDistance;
+					head = (head - 1) & mask;
+					deque[head] = newCell;
+				}
+				if (curDistance + 1 < distance[newCell + limit])
+				{
+					distance[newCell + limit] = curDistance + 1;
+					deque[tail] = newCell + limit;
+					tail = (tail + 1) & mask;
+				}
+			}
+		}
+
+		for (int cell : dst)
+			isGoal[cell >>> 6] = 0;
+		return best;
+	}
+
+	/* Whether cell holds a block with a wire into the wall */
+	private static boolean isWired(Grid grid, int cell, Direction wall)
+	{
+		return grid.isOccupied(cell) && grid.hasWire(cell, wall);
+	}
+
+	private static boolean isSet(long[] bitset, int index)
+	{
+		return (bitset[index >>> 6] & (1L << index)) != 0;
+	}
 }
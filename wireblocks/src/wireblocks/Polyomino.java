@@ -153,12 +153,41 @@ public class Polyomino
 	{
 		updateInGrid(grid, gridPhysics, true);
 	}
-	
+
 	/*
-	 * Requires GridPhysics so we can incorporate gravity.
+	 * Checks that every cell the piece would cover is on the board and empty.
+	 * Only meaningful while the piece itself is not in the grid.
 	 */
-	private void updateInGrid(Grid grid, GridPhysics gridPhysics,
-	                          boolean present)
+	public boolean canPlaceInGrid(Grid grid, GridPhysics gridPhysics)
+	{
+		Direction gravity = gridPhysics.getGravity();
+		Vector2i vel = gravity.toVector();
+		boolean vertical = vel.getX() == 0;
+		boolean forward = vel.getX() + vel.getY() > 0;
+		int length = vertical? grid.getHeight() : grid.getWidth();
+
+		Vector2i origin = getOrigin(grid, gridPhysics);
+		for (Cell cell : m_cells)
+		{
+			Vector2i loc = origin.add(cell.getLoc());
+			if (!grid.isInBounds(loc)) return false;
+
+			/*
+			 * Anything past the top of the stack in its line is known to be
+			 * free; only cells inside the stack need to be looked at.
+			 */
+			int line = vertical? loc.getX() : loc.getY();
+			int pos = vertical? loc.getY() : loc.getX();
+			int height = forward? length - pos : pos + 1;
+			if (height <= grid.getStackHeight(line, gravity)
+			    && grid.isOccupied(loc))
+				return false;
+		}
+		return true;
+	}
+	
+	/* Where the piece's origin sits in the grid */
+	private Vector2i getOrigin(Grid grid, GridPhysics gridPhysics)
 	{
 		/* Find the middle of the board at the "top" */
 		Vector2i middle;
@@ -190,6 +219,17 @@ public class Polyomino
 		System.out.println("middle = " + middle);
 		System.out.println("center = " + center);
 
+		return middle.sub(center);
+	}
+
+	/*
+	 * Requires GridPhysics so we can incorporate gravity.
+	 */
+	private void updateInGrid(Grid grid, GridPhysics gridPhysics,
+	                          boolean present)
+	{
+		Vector2i origin = getOrigin(grid, gridPhysics);
+
 		/* Build and place each block */
 		for (Cell cell : m_cells)
 		{
@@ -198,7 +238,7 @@ public class Polyomino
 			Block block = present? cell.getBlock() : null;
 
 			/* Compute where it will go */
-			Vector2i loc = middle.sub(center).add(v);
+			Vector2i loc = origin.add(v);
 			System.out.println("v = " + v + " ==> loc = " + loc);
 			
 			/* Place in the grid */
@@ -210,6 +250,7 @@ public class Polyomino
 	{
 		removeFromGrid(grid, gridPhysics);
 		m_offset += delta;
+		if (!canPlaceInGrid(grid, gridPhysics)) m_offset -= delta;
 		placeInGrid(grid, gridPhysics);
 	}
 
@@ -218,7 +259,17 @@ public class Polyomino
 		/* Remove the blocks from the grid */
 		removeFromGrid(grid, gridPhysics);
 		
-		/* Now update all vectors */
+		/* Now update all vectors, undoing it if the piece no longer fits */
+		rotateCells(rotation);
+		if (!canPlaceInGrid(grid, gridPhysics))
+			rotateCells(rotation.reverse());
+		
+		/* Put the blocks back into the grid */
+		placeInGrid(grid, gridPhysics);
+	}
+
+	private void rotateCells(Rotation rotation)
+	{
 		for (Cell cell : m_cells)
 		{
 			Vector2i v = cell.getLoc();
@@ -228,18 +279,20 @@ public class Polyomino
 			Block block = cell.getBlock();
 			block.rotate(rotation);
 		}
-		
-		/* Put the blocks back into the grid */
-		placeInGrid(grid, gridPhysics);
 	}
 
-	public void release()
+	/*
+	 * The grid keeps its own copy of each placed block, so the released blocks
+	 * have to be written back for the change to take effect.
+	 */
+	public void release(Grid grid, GridPhysics gridPhysics)
 	{
 		for (Cell cell : m_cells)
 		{
 			Block block = cell.getBlock();
 			block.setFloating(false);
 		}
+		placeInGrid(grid, gridPhysics);
 	}
 	
 	private Vector2i getMin()
@@ -0,0 +1,214 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ramona Seay
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+
+package wireblocks;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/*
+ * Labels the wire regions of a grid using every core. The board is cut into
+ * square tiles which are labeled in parallel on a fork/join pool, and the
+ * labels are then merged across tile borders, also in parallel, through a
+ * lock-free disjoint-set forest. Finally the regions are numbered in the
+ * order GraphBuilder has always used: scanning columns left to right and
+ * each column top to bottom, a region gets the next id when its first cell
+ * is met.
+ *
+ * The grid is only read, from several threads at once, so it must not be
+ * modified while a labeling runs. Pass a snapshot when that cannot be
+ * guaranteed.
+ */
+public class RegionLabeler
+{
+	public static final int DEFAULT_TILE_SIZE = 64;
+
+	private ForkJoinPool m_pool;
+	private int          m_tileSize;
+
+	public RegionLabeler()
+	{
+		this(ForkJoinPool.commonPool(), DEFAULT_TILE_SIZE);
+	}
+
+	public RegionLabeler(ForkJoinPool pool, int tileSize)
+	{
+		m_pool = pool;
+		m_tileSize = tileSize;
+	}
+
+	/*
+	 * Fills labels, indexed by packed cell index, with the region of every
+	 * cell or -1 for empty cells. labels must have room for
+	 * grid.getIndexLimit() entries. Returns the number of regions.
+	 */
+	public int label(Grid grid, int[] labels)
+	{
+		int width = grid.getWidth();
+		int height = grid.getHeight();
+		int tilesX = (width + m_tileSize - 1) / m_tileSize;
+		int tilesY = (height + m_tileSize - 1) / m_tileSize;
+
+		AtomicIntegerArray parent = new AtomicIntegerArray(
+		        grid.getIndexLimit());
+		for (int i = 0; i < parent.length(); ++i)
+			parent.set(i, i);
+
+		/* Links inside tiles first, then links that cross tile borders */
+		m_pool.invoke(new TileTask(grid, parent, 0, tilesX * tilesY, tilesX,
+		                           false));
+		m_pool.invoke(new TileTask(grid, parent, 0, tilesX * tilesY, tilesX,
+		                           true));
+
+		/* Number the roots in scan order */
+		int[] rootLabels = new int[parent.length()];
+		Arrays.fill(rootLabels, -1);
+		int numRegions = 0;
+		for (int x = 0; x < width; ++x)
+			for (int y = 0; y < height; ++y)
+			{
+				int cell = grid.getIndex(x, y);
+				if (!grid.isOccupied(cell))
+				{
+					labels[cell] = -1;
+					continue;
+				}
+
+				int root = find(parent, cell);
+				if (rootLabels[root] < 0) rootLabels[root] = numRegions++;
+				labels[cell] = rootLabels[root];
+			}
+		return numRegions;
+	}
+
+	/* Joins the cells of a range of tiles, splitting it up between workers */
+	private final class TileTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final Grid               m_grid;
+		private final AtomicIntegerArray m_parent;
+		private final int                m_begin;
+		private final int                m_end;
+		private final int                m_tilesX;
+		private final boolean            m_borders;
+
+		public TileTask(Grid grid, AtomicIntegerArray parent, int begin,
+		                int end, int tilesX, boolean borders)
+		{
+			m_grid = grid;
+			m_parent = parent;
+			m_begin = begin;
+			m_end = end;
+			m_tilesX = tilesX;
+			m_borders = borders;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (m_end - m_begin > 1)
+			{
+				int middle = (m_begin + m_end) >>> 1;
+				invokeAll(new TileTask(m_grid, m_parent, m_begin, middle,
+				                       m_tilesX, m_borders),
+				          new TileTask(m_grid, m_parent, middle, m_end,
+				                       m_tilesX, m_borders));
+				return;
+			}
+			if (m_begin == m_end) return;
+
+			int xBegin = (m_begin % m_tilesX) * m_tileSize;
+			int yBegin = (m_begin / m_tilesX) * m_tileSize;
+			int xEnd = Math.min(xBegin + m_tileSize, m_grid.getWidth());
+			int yEnd = Math.min(yBegin + m_tileSize, m_grid.getHeight());
+
+			if (m_borders)
+			{
+				/* Links leaving the tile through its east and south edges */
+				for (int y = yBegin; y < yEnd; ++y)
+					link(xEnd - 1, y, Direction.EAST);
+				for (int x = xBegin; x < xEnd; ++x)
+					link(x, yEnd - 1, Direction.SOUTH);
+				return;
+			}
+
+			for (int y = yBegin; y < yEnd; ++y)
+				for (int x = xBegin; x < xEnd; ++x)
+				{
+					if (x + 1 < xEnd) link(x, y, Direction.EAST);
+					if (y + 1 < yEnd) link(x, y, Direction.SOUTH);
+				}
+		}
+
+		/* Joins (x, y) with its neighbor in direction if the wires meet */
+		private void link(int x, int y, Direction direction)
+		{
+			int cell = m_grid.getIndex(x, y);
+			if (!m_grid.isOccupied(cell)) return;
+			if (!m_grid.hasWire(cell, direction)) return;
+
+			int neighbor = m_grid.getNeighbor(cell, direction);
+			if (neighbor < 0) return;
+			if (!m_grid.isOccupied(neighbor)) return;
+			if (!m_grid.hasWire(neighbor, direction.reverse())) return;
+
+			union(m_parent, cell, neighbor);
+		}
+	}
+
+	private static int find(AtomicIntegerArray parent, int node)
+	{
+		while (true)
+		{
+			int up = parent.get(node);
+			if (up == node) return node;
+
+			/* Path halving; losing the race only costs a longer path */
+			int grandparent = parent.get(up);
+			if (grandparent != up)
+				parent.compareAndSet(node, up, grandparent);
+			node = grandparent;
+		}
+	}
+
+	/*
+	 * Roots are always linked to the smaller index, so concurrent unions
+	 * can never form a cycle. A failed compare-and-set means another thread
+	 * changed the root in the meantime, and the union starts over.
+	 */
+	private static void union(AtomicIntegerArray parent, int a, int b)
+	{
+		while (true)
+		{
+			int rootA = find(parent, a);
+			int rootB = find(parent, b);
+			if (rootA == rootB) return;
+
+			int low = Math.min(rootA, rootB);
+			int high = Math.max(rootA, rootB);
+			if (parent.compareAndSet(high, high, low)) return;
+		}
+	}
+}
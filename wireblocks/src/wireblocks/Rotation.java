@@ -38,6 +38,11 @@ public enum Rotation
 		return m_vel;
 	}
 
+	public Rotation reverse()
+	{
+		return this == LEFT? RIGHT : LEFT;
+	}
+
 	/* Rotate a vector by 90 degrees */
 	public Vector2i rotateVector90(Vector2i v)
 	{
@@ -68,15 +68,14 @@ public class SimpleBlockView implements BlockView
 		g2d.setColor(wireColor);
 
 		/* For each direction, compute where the wire goes and draw it */
-		Direction[] dirs = Direction.toArray();
-		for (int i = 0; i < block.getNumWires(); ++i)
+		WireType type = block.getWireType();
+		for (Direction direction : Direction.toArray())
 		{
 			/* Skip the wire if it's not even present in this block */
-			boolean active = block.getWire(i);
-			if (!active) continue;
+			if (!type.hasWire(direction)) continue;
 
 			/* Now compute where on the border the wire ends at */
-			Vector2i dir = dirs[i].toVector();
+			Vector2i dir = direction.toVector();
 			Vector2i offset = dir.scale(m_size / 2);
 			Vector2i edge = center.add(offset);
 			
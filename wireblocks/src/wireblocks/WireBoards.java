@@ -0,0 +1,83 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ramona Seay
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+
+package wireblocks;
+
+/*
+ * Per-row bitboards of wires, one plane for each direction. Bit x of row y in
+ * the plane for a direction is set when the block at (x, y) has a wire that
+ * way; empty cells have no wires. Lets searches step 64 cells at a time.
+ */
+class WireBoards
+{
+	private final int      m_width;
+	private final int      m_height;
+	private final int      m_rowWords;
+	private final long[][] m_planes;
+
+	public WireBoards(GridStorage storage)
+	{
+		m_width = storage.getWidth();
+		m_height = storage.getHeight();
+		m_rowWords = (m_width + 63) >>> 6;
+		m_planes = new long[Direction.numDirections()][m_height * m_rowWords];
+
+		for (int y = 0; y < m_height; ++y)
+			for (int x = 0; x < m_width; ++x)
+				set(x, y, storage.getWireMask(storage.indexOf(x, y)));
+	}
+
+	public int getWidth()
+	{
+		return m_width;
+	}
+
+	public int getHeight()
+	{
+		return m_height;
+	}
+
+	/* Words per row in every plane */
+	public int getRowWords()
+	{
+		return m_rowWords;
+	}
+
+	/* Plane for the direction with the given index; must not be modified */
+	public long[] getPlane(int direction)
+	{
+		return m_planes[direction];
+	}
+
+	public void set(int x, int y, int wireMask)
+	{
+		int word = y * m_rowWords + (x >>> 6);
+		long bit = 1L << x;
+		for (int i = 0; i < m_planes.length; ++i)
+		{
+			if ((wireMask & (1 << i)) != 0)
+				m_planes[i][word] |= bit;
+			else
+				m_planes[i][word] &= ~bit;
+		}
+	}
+}
@@ -0,0 +1,214 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ramona Seay
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+
+package wireblocks;
+
+/*
+ * Flyweight describing one of the sixteen possible wire layouts of a block.
+ * There is exactly one instance per wire mask, so types can be compared with
+ * == and shared freely between blocks, grids and views. Bit i of a mask
+ * corresponds to the i-th entry of Direction.toArray().
+ */
+public final class WireType
+{
+	private static final int        NUM_WIRES         = 4;
+	private static final int        NUM_TYPES         = 1 << NUM_WIRES;
+
+	/* How many wires a random block gets; see Block() */
+	private static final int[]      RANDOM_WIRE_COUNT = { 2, 2, 3, 3 };
+
+	private static final WireType[] TYPES;
+
+	/* BY_WIRE_COUNT[k] holds every type with exactly k wires */
+	private static final WireType[][] BY_WIRE_COUNT;
+
+	static
+	{
+		TYPES = new WireType[NUM_TYPES];
+		for (int mask = 0; mask < NUM_TYPES; ++mask)
+			TYPES[mask] = new WireType(mask);
+		for (WireType type : TYPES)
+			type.link();
+
+		int[] counts = new int[NUM_WIRES + 1];
+		for (WireType type : TYPES)
+			counts[type.m_numWires]++;
+		BY_WIRE_COUNT = new WireType[NUM_WIRES + 1][];
+		for (int k = 0; k <= NUM_WIRES; ++k)
+			BY_WIRE_COUNT[k] = new WireType[counts[k]];
+		for (WireType type : TYPES)
+		{
+			int k = type.m_numWires;
+			BY_WIRE_COUNT[k][--counts[k]] = type;
+		}
+	}
+
+	private final int       m_mask;
+	private final int       m_numWires;
+	private final int       m_reverseMask;
+	private final boolean[] m_wires;
+	private WireType        m_rotatedLeft;
+	private WireType        m_rotatedRight;
+	private String          m_imageName;
+	private int             m_imageRotation;
+
+	private WireType(int mask)
+	{
+		m_mask = mask;
+		m_numWires = Integer.bitCount(mask);
+
+		/* Mirror every wire through the center of the block */
+		m_reverseMask = ((mask << 2) | (mask >>> 2)) & (NUM_TYPES - 1);
+
+		m_wires = new boolean[NUM_WIRES];
+		for (int i = 0; i < NUM_WIRES; ++i)
+			m_wires[i] = (mask & (1 << i)) != 0;
+	}
+
+	/* Fill in everything that refers to other types */
+	private void link()
+	{
+		m_rotatedLeft = TYPES[rotateMask(m_mask, Rotation.LEFT)];
+		m_rotatedRight = TYPES[rotateMask(m_mask, Rotation.RIGHT)];
+
+		/*
+		 * Each image is drawn for one base layout and turned clockwise (the
+		 * same way as Rotation.RIGHT) a quarter at a time to match the rest.
+		 */
+		String[] names = { "4WayWire", "LWire", "StraightWire", "3WayWire" };
+		int[] bases = { 0xF, 0x3, 0xA, 0xB };
+		for (int i = 0; i < names.length; ++i)
+		{
+			int mask = bases[i];
+			for (int rotation = 0; rotation < NUM_WIRES; ++rotation)
+			{
+				if (mask == m_mask)
+				{
+					m_imageName = names[i];
+					m_imageRotation = rotation;
+					return;
+				}
+				mask = rotateMask(mask, Rotation.RIGHT);
+			}
+		}
+	}
+
+	private static int rotateMask(int mask, Rotation rotation)
+	{
+		int vel = rotation.getVelOffset();
+		int rotated = 0;
+		for (int i = 0; i < NUM_WIRES; ++i)
+		{
+			int index = (i + vel + NUM_WIRES) % NUM_WIRES;
+			if ((mask & (1 << index)) != 0) rotated |= 1 << i;
+		}
+		return rotated;
+	}
+
+	public static WireType of(int mask)
+	{
+		return TYPES[mask];
+	}
+
+	/*
+	 * Picks a layout for a freshly generated block: two or three wires with
+	 * equal odds, spread uniformly over the directions.
+	 */
+	public static WireType random()
+	{
+		int numWires = RandomUtils.randomFromDist(RANDOM_WIRE_COUNT);
+		WireType[] choices = BY_WIRE_COUNT[numWires];
+		return choices[RandomUtils.GENERATOR.nextInt(choices.length)];
+	}
+
+	public int getMask()
+	{
+		return m_mask;
+	}
+
+	public int getNumWires()
+	{
+		return m_numWires;
+	}
+
+	public boolean hasWire(Direction direction)
+	{
+		return (m_mask & direction.getMask()) != 0;
+	}
+
+	/*
+	 * Returns a shared array with one entry per direction. The array must not
+	 * be modified.
+	 */
+	public boolean[] getWires()
+	{
+		return m_wires;
+	}
+
+	public WireType withWire(Direction direction, boolean value)
+	{
+		int bit = direction.getMask();
+		return TYPES[value? m_mask | bit : m_mask & ~bit];
+	}
+
+	public WireType rotate(Rotation rotation)
+	{
+		return rotation == Rotation.LEFT? m_rotatedLeft : m_rotatedRight;
+	}
+
+	/*
+	 * The wires a neighbor has to carry for each of this type's wires to
+	 * connect: bit d is set when this type has a wire in direction d.reverse().
+	 */
+	public int getReverseMask()
+	{
+		return m_reverseMask;
+	}
+
+	/* Tests if this type links up with a neighbor lying in direction */
+	public boolean connects(Direction direction, WireType neighbor)
+	{
+		int bit = direction.getMask();
+		return (m_mask & bit) != 0 && (neighbor.m_reverseMask & bit) != 0;
+	}
+
+	/* Name of the tile image for this layout, or null if there is none */
+	public String getImageName()
+	{
+		return m_imageName;
+	}
+
+	/* Number of clockwise quarter turns to apply to the tile image */
+	public int getImageRotation()
+	{
+		return m_imageRotation;
+	}
+
+	@Override
+	public String toString()
+	{
+		String ret = "";
+		for (Direction direction : Direction.toArray())
+			if (hasWire(direction)) ret += direction.name().charAt(0);
+		return "[" + ret + "]";
+	}
+}